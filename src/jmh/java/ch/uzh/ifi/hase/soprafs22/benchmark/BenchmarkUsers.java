@@ -0,0 +1,27 @@
+package ch.uzh.ifi.hase.soprafs22.benchmark;
+
+import ch.uzh.ifi.hase.soprafs22.constant.UserStatus;
+import ch.uzh.ifi.hase.soprafs22.entity.User;
+
+import java.util.Date;
+import java.util.UUID;
+
+/**
+ * Test data shared by the benchmarks.
+ */
+final class BenchmarkUsers {
+
+  private BenchmarkUsers() {}
+
+  static User user(long id) {
+    User user = new User();
+    user.setId(id);
+    user.setName("name" + id);
+    user.setUsername("username" + id);
+    user.setToken(UUID.randomUUID().toString());
+    user.setStatus(id % 2 == 0 ? UserStatus.ONLINE : UserStatus.OFFLINE);
+    user.setCreation_date(new Date(1_640_995_200_000L + id * 60_000L));
+    user.setBirthday(new Date(631_152_000_000L + id * 86_400_000L));
+    return user;
+  }
+}
@@ -0,0 +1,82 @@
+package ch.uzh.ifi.hase.soprafs22.benchmark;
+
+import ch.uzh.ifi.hase.soprafs22.rest.converter.UserProtobufHttpMessageConverter;
+import ch.uzh.ifi.hase.soprafs22.rest.dto.UserGetDTO;
+import ch.uzh.ifi.hase.soprafs22.rest.mapper.DTOMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * PayloadFormatBenchmark
+ * Encodes the same list of users in every format GET /users can answer with
+ * (JSON as Spring Boot configures it, Smile, CBOR, protobuf), optionally
+ * gzipped like server.compression does. The encode time is the benchmark
+ * result; the payload sizes are printed once per trial:
+ * "payload format=cbor size=1000 gzip=false bytes=...".
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PayloadFormatBenchmark {
+
+  @Param({"json", "smile", "cbor", "protobuf"})
+  private String format;
+
+  @Param({"100", "10000"})
+  private int size;
+
+  @Param({"false", "true"})
+  private boolean gzip;
+
+  private List<UserGetDTO> users;
+
+  private ObjectWriter writer;
+
+  @Setup
+  public void setup() throws IOException {
+    users = new ArrayList<>(size);
+    for (long id = 1; id <= size; id++) {
+      users.add(DTOMapper.INSTANCE.convertEntityToUserGetDTO(BenchmarkUsers.user(id)));
+    }
+    switch (format) {
+      case "json":
+        // Spring Boot writes dates as ISO-8601 strings
+        writer = Jackson2ObjectMapperBuilder.json()
+            .featuresToDisable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS).build().writerFor(List.class);
+        break;
+      case "smile":
+        writer = Jackson2ObjectMapperBuilder.smile().build().writerFor(List.class);
+        break;
+      case "cbor":
+        writer = Jackson2ObjectMapperBuilder.cbor().build().writerFor(List.class);
+        break;
+      default:
+        writer = null;
+    }
+    System.out.printf("%npayload format=%s size=%d gzip=%s bytes=%d%n", format, size, gzip, encode().length);
+  }
+
+  @Benchmark
+  public byte[] encode() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    OutputStream out = gzip ? new GZIPOutputStream(bytes) : bytes;
+    if (writer != null) {
+      writer.writeValue(out, users);
+    }
+    else {
+      UserProtobufHttpMessageConverter.writeUserList(users, out);
+    }
+    out.close();
+    return bytes.toByteArray();
+  }
+}
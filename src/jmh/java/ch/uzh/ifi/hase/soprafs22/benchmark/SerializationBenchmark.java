@@ -0,0 +1,45 @@
+package ch.uzh.ifi.hase.soprafs22.benchmark;
+
+import ch.uzh.ifi.hase.soprafs22.rest.dto.UserGetDTO;
+import ch.uzh.ifi.hase.soprafs22.rest.mapper.DTOMapper;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SerializationBenchmark
+ * Measures the JSON serialization of a list of users, the way Spring MVC writes
+ * the response of the list endpoints.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SerializationBenchmark {
+
+  @Param({"1000", "100000"})
+  private int size;
+
+  private List<UserGetDTO> users;
+
+  private ObjectWriter writer;
+
+  @Setup
+  public void setup() {
+    users = new ArrayList<>(size);
+    for (long id = 1; id <= size; id++) {
+      users.add(DTOMapper.INSTANCE.convertEntityToUserGetDTO(BenchmarkUsers.user(id)));
+    }
+    // same defaults as the ObjectMapper Spring Boot configures
+    writer = Jackson2ObjectMapperBuilder.json().build().writerFor(List.class);
+  }
+
+  @Benchmark
+  public byte[] serializeUserList() throws JsonProcessingException {
+    return writer.writeValueAsBytes(users);
+  }
+}
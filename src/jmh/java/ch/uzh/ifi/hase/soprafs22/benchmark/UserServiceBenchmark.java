@@ -0,0 +1,96 @@
+package ch.uzh.ifi.hase.soprafs22.benchmark;
+
+import ch.uzh.ifi.hase.soprafs22.Application;
+import ch.uzh.ifi.hase.soprafs22.entity.User;
+import ch.uzh.ifi.hase.soprafs22.rest.dto.UserBatchResultDTO;
+import ch.uzh.ifi.hase.soprafs22.service.UserService;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * UserServiceBenchmark
+ * Measures the service hot paths end to end against an embedded H2 seeded with
+ * SEED_USERS users. The application context is started once per fork, without
+ * the web server.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class UserServiceBenchmark {
+
+  private static final int SEED_USERS = 10_000;
+
+  private final AtomicLong nextUsername = new AtomicLong();
+
+  private ConfigurableApplicationContext context;
+
+  private UserService userService;
+
+  private String[] tokens;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    context = new SpringApplicationBuilder(Application.class)
+        .web(WebApplicationType.NONE)
+        .properties(
+            "spring.datasource.url=jdbc:h2:mem:jmh;DB_CLOSE_DELAY=-1",
+            "spring.jpa.show-sql=false",
+            "spring.h2.console.enabled=false",
+            // cheap hashes keep seeding fast; the bcrypt cost itself is in the credentials.bcrypt timer
+            "credentials.bcrypt-strength=4",
+            "logging.level.root=WARN")
+        .run();
+    userService = context.getBean(UserService.class);
+
+    // the first half is logged in by loginUser(), the tokens of the second half stay valid for findByToken()
+    tokens = new String[SEED_USERS / 2];
+    for (int start = 0; start < SEED_USERS; start += UserService.MAX_BATCH_SIZE) {
+      List<User> seed = new ArrayList<>(UserService.MAX_BATCH_SIZE);
+      for (int i = start; i < Math.min(start + UserService.MAX_BATCH_SIZE, SEED_USERS); i++) {
+        seed.add(newUser("seed" + i));
+      }
+      for (UserBatchResultDTO result : userService.createUsers(seed)) {
+        int i = start + result.getIndex();
+        if (i >= SEED_USERS / 2) {
+          tokens[i - SEED_USERS / 2] = result.getUser().getToken();
+        }
+      }
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    context.close();
+  }
+
+  @Benchmark
+  public User createUser() {
+    return userService.createUser(newUser("bench" + nextUsername.incrementAndGet()));
+  }
+
+  @Benchmark
+  public User loginUser() {
+    int i = ThreadLocalRandom.current().nextInt(SEED_USERS / 2);
+    return userService.loginUser("seed" + i, "pw");
+  }
+
+  @Benchmark
+  public User findByToken() {
+    return userService.findByToken(tokens[ThreadLocalRandom.current().nextInt(tokens.length)]);
+  }
+
+  private static User newUser(String username) {
+    User user = new User();
+    user.setUsername(username);
+    user.setName("pw");
+    return user;
+  }
+}
@@ -0,0 +1,156 @@
+package ch.uzh.ifi.hase.soprafs22.loadtest;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.ConnectException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Startup Benchmark
+ * Starts the server as a child process, again and again, and measures the time
+ * from launching the JVM to the first successful GET /users: that is how long a
+ * freshly scaled-out instance takes to serve traffic. With lazy initialization
+ * the first request pays for the beans it needs, so it is part of the number.
+ * Every variant (label, extra JVM arguments, extra application arguments) gets
+ * the same number of runs, see README.
+ *
+ * Arguments: runs port java classpath variant... where a variant is
+ * "label|jvm args|application args" (arguments separated by spaces)
+ */
+public class StartupBenchmark {
+
+  private static final String MAIN_CLASS = "ch.uzh.ifi.hase.soprafs22.Application";
+  private static final Duration TIMEOUT = Duration.ofMinutes(2);
+  private static final Pattern STARTED = Pattern.compile("Started Application in ([\\d.]+) seconds");
+
+  private final HttpClient client = HttpClient.newBuilder()
+      .version(HttpClient.Version.HTTP_1_1)
+      .connectTimeout(Duration.ofSeconds(1))
+      .build();
+
+  private final int port;
+  private final String java;
+  private final String classpath;
+
+  private StartupBenchmark(int port, String java, String classpath) {
+    this.port = port;
+    this.java = java;
+    this.classpath = classpath;
+  }
+
+  public static void main(String[] args) throws Exception {
+    int runs = Integer.parseInt(args[0]);
+    StartupBenchmark benchmark = new StartupBenchmark(Integer.parseInt(args[1]), args[2], args[3]);
+
+    List<String> summaries = new ArrayList<>();
+    for (String variant : Arrays.asList(args).subList(4, args.length)) {
+      String[] parts = variant.split("\\|", -1);
+      List<Long> firstRequestMillis = new ArrayList<>();
+      for (int run = 1; run <= runs; run++) {
+        Result result = benchmark.run(split(parts[1]), split(parts[2]));
+        firstRequestMillis.add(result.firstRequestMillis);
+        System.out.printf("%-12s run %d: first request after %5d ms (Spring Boot reports started in %s s)%n",
+            parts[0], run, result.firstRequestMillis, result.startedSeconds);
+      }
+      Collections.sort(firstRequestMillis);
+      summaries.add(String.format("%-12s time to first request: min=%5d ms  median=%5d ms  max=%5d ms",
+          parts[0], firstRequestMillis.get(0), firstRequestMillis.get(firstRequestMillis.size() / 2),
+          firstRequestMillis.get(firstRequestMillis.size() - 1)));
+    }
+    summaries.forEach(System.out::println);
+  }
+
+  private Result run(List<String> jvmArgs, List<String> appArgs) throws Exception {
+    List<String> command = new ArrayList<>();
+    command.add(java);
+    command.addAll(jvmArgs);
+    command.add("-cp");
+    command.add(classpath);
+    command.add(MAIN_CLASS);
+    command.add("--server.port=" + port);
+    command.addAll(appArgs);
+
+    long started = System.nanoTime();
+    Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+    AtomicReference<String> startedSeconds = new AtomicReference<>("?");
+    Thread output = new Thread(() -> readOutput(process, startedSeconds));
+    output.setDaemon(true);
+    output.start();
+    try {
+      long firstRequest = awaitFirstRequest(process, started);
+      return new Result((firstRequest - started) / 1_000_000, startedSeconds.get());
+    }
+    finally {
+      // SIGTERM: a graceful exit, the JVM writes a requested CDS archive on the way out
+      process.destroy();
+      if (!process.waitFor(30, TimeUnit.SECONDS)) {
+        process.destroyForcibly();
+      }
+      output.join(1000);
+    }
+  }
+
+  private long awaitFirstRequest(Process process, long started) throws Exception {
+    HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/users"))
+        .timeout(TIMEOUT)
+        .build();
+    while (System.nanoTime() - started < TIMEOUT.toNanos()) {
+      if (!process.isAlive()) {
+        throw new IllegalStateException("The server exited with " + process.exitValue() + " before serving a request");
+      }
+      try {
+        if (client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode() == 200) {
+          return System.nanoTime();
+        }
+      }
+      catch (ConnectException e) {
+        // not listening yet
+      }
+      Thread.sleep(5);
+    }
+    throw new IllegalStateException("No successful request within " + TIMEOUT);
+  }
+
+  private static void readOutput(Process process, AtomicReference<String> startedSeconds) {
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        Matcher matcher = STARTED.matcher(line);
+        if (matcher.find()) {
+          startedSeconds.set(matcher.group(1));
+        }
+      }
+    }
+    catch (IOException e) {
+      // the process is gone
+    }
+  }
+
+  private static List<String> split(String arguments) {
+    return arguments.isBlank() ? Collections.emptyList() : Arrays.asList(arguments.trim().split("\\s+"));
+  }
+
+  private static class Result {
+    final long firstRequestMillis;
+    final String startedSeconds;
+
+    Result(long firstRequestMillis, String startedSeconds) {
+      this.firstRequestMillis = firstRequestMillis;
+      this.startedSeconds = startedSeconds;
+    }
+  }
+}
@@ -0,0 +1,150 @@
+package ch.uzh.ifi.hase.soprafs22.loadtest;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * User Load Test
+ * Drives a running server with a fixed number of requests in flight: 80% profile
+ * reads (GET /users/{id}) and 20% logins (PUT /users/login, which wait on bcrypt).
+ * Run it once against the default thread pool and once with
+ * server.virtual-threads.enabled=true and compare the numbers, see README.
+ *
+ * Arguments: baseUrl concurrency seconds
+ */
+public class UserLoadTest {
+
+  private static final int SEED_USERS = 1000;
+  private static final int LOGIN_PERCENT = 20;
+  private static final Duration WARMUP = Duration.ofSeconds(5);
+  private static final Pattern USER_ID = Pattern.compile("\"id\":(\\d+)");
+
+  private final HttpClient client = HttpClient.newBuilder()
+      .version(HttpClient.Version.HTTP_1_1)
+      .connectTimeout(Duration.ofSeconds(10))
+      .build();
+
+  private final String baseUrl;
+  private final String prefix = "load" + System.currentTimeMillis() + "-";
+  private final List<Long> userIds = new ArrayList<>();
+
+  private UserLoadTest(String baseUrl) {
+    this.baseUrl = baseUrl;
+  }
+
+  public static void main(String[] args) throws Exception {
+    String baseUrl = args.length > 0 ? args[0] : "http://localhost:8080";
+    int concurrency = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+    int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+
+    UserLoadTest loadTest = new UserLoadTest(baseUrl);
+    loadTest.seed();
+    System.out.printf("Seeded %d users, warming up for %ds%n", loadTest.userIds.size(), WARMUP.getSeconds());
+    loadTest.run(concurrency, WARMUP);
+
+    System.out.printf("Running %d requests in flight for %ds against %s%n", concurrency, seconds, baseUrl);
+    Map<String, Stats> stats = loadTest.run(concurrency, Duration.ofSeconds(seconds));
+    stats.forEach((name, s) -> System.out.println(s.summary(name, seconds)));
+  }
+
+  private void seed() throws Exception {
+    StringBuilder body = new StringBuilder("[");
+    for (int i = 0; i < SEED_USERS; i++) {
+      // the name is the password
+      body.append(i == 0 ? "" : ",")
+          .append("{\"name\":\"").append(prefix).append(i)
+          .append("\",\"username\":\"").append(prefix).append(i).append("\"}");
+    }
+    body.append(']');
+    HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + "/users/batch"))
+        .header("Content-Type", "application/json")
+        .POST(HttpRequest.BodyPublishers.ofString(body.toString()))
+        .build();
+    HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+    if (response.statusCode() != 200) {
+      throw new IllegalStateException("Seeding failed with " + response.statusCode() + ": " + response.body());
+    }
+    Matcher matcher = USER_ID.matcher(response.body());
+    while (matcher.find()) {
+      userIds.add(Long.parseLong(matcher.group(1)));
+    }
+  }
+
+  private Map<String, Stats> run(int concurrency, Duration duration) throws InterruptedException {
+    Map<String, Stats> stats = new TreeMap<>();
+    stats.put("GET /users/{id}", new Stats());
+    stats.put("PUT /users/login", new Stats());
+
+    long deadline = System.nanoTime() + duration.toNanos();
+    CountDownLatch done = new CountDownLatch(concurrency);
+    for (int i = 0; i < concurrency; i++) {
+      next(stats, deadline, done);
+    }
+    done.await();
+    return stats;
+  }
+
+  /**
+   * Sends one request and, once it completes, the next one, until the deadline.
+   */
+  private void next(Map<String, Stats> stats, long deadline, CountDownLatch done) {
+    if (System.nanoTime() >= deadline) {
+      done.countDown();
+      return;
+    }
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    int index = random.nextInt(userIds.size());
+    HttpRequest request;
+    Stats target;
+    if (random.nextInt(100) < LOGIN_PERCENT) {
+      String username = prefix + index;
+      request = HttpRequest.newBuilder(URI.create(baseUrl + "/users/login?username=" + username + "&pw=" + username))
+          .PUT(HttpRequest.BodyPublishers.noBody())
+          .build();
+      target = stats.get("PUT /users/login");
+    }
+    else {
+      request = HttpRequest.newBuilder(URI.create(baseUrl + "/users/" + userIds.get(index))).GET().build();
+      target = stats.get("GET /users/{id}");
+    }
+
+    long start = System.nanoTime();
+    client.sendAsync(request, HttpResponse.BodyHandlers.discarding()).whenComplete((response, error) -> {
+      target.record(System.nanoTime() - start, error == null ? response.statusCode() : -1);
+      next(stats, deadline, done);
+    });
+  }
+
+  private static final class Stats {
+    private final List<Long> latencies = new ArrayList<>();
+    private final Map<Integer, Integer> statusCounts = new TreeMap<>();
+
+    private synchronized void record(long nanos, int status) {
+      latencies.add(nanos);
+      statusCounts.merge(status, 1, Integer::sum);
+    }
+
+    private synchronized String summary(String name, int seconds) {
+      Collections.sort(latencies);
+      return String.format("%-18s requests=%8d  throughput=%9.1f req/s  p50=%7.1f ms  p99=%8.1f ms  status=%s",
+          name, latencies.size(), latencies.size() / (double) seconds,
+          percentile(0.50) / 1e6, percentile(0.99) / 1e6, statusCounts);
+    }
+
+    private long percentile(double p) {
+      return latencies.isEmpty() ? 0 : latencies.get((int) Math.min(latencies.size() - 1, latencies.size() * p));
+    }
+  }
+}
@@ -0,0 +1,28 @@
+package ch.uzh.ifi.hase.soprafs22;
+
+import ch.uzh.ifi.hase.soprafs22.rest.converter.UserProtobufHttpMessageConverter;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+import java.util.List;
+
+/**
+ * Content Negotiation Configuration
+ * Besides JSON, the user endpoints answer Accept: application/cbor and
+ * application/x-jackson-smile (Spring MVC registers both Jackson converters as
+ * soon as the dataformat modules are on the classpath, with dates as epoch
+ * milliseconds) and application/x-protobuf for UserGetDTO bodies. The protobuf
+ * converter goes last, so a client sending Accept: *&#47;* still gets JSON.
+ * Responses above server.compression.min-response-size are gzipped.
+ */
+@Configuration
+@Profile("!reactive")
+public class ContentNegotiationConfiguration implements WebMvcConfigurer {
+
+  @Override
+  public void extendMessageConverters(List<HttpMessageConverter<?>> converters) {
+    converters.add(new UserProtobufHttpMessageConverter());
+  }
+}
@@ -0,0 +1,64 @@
+package ch.uzh.ifi.hase.soprafs22;
+
+import com.zaxxer.hikari.HikariDataSource;
+import io.r2dbc.spi.ConnectionFactories;
+import io.r2dbc.spi.ConnectionFactory;
+import io.r2dbc.spi.ConnectionFactoryOptions;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.boot.web.embedded.netty.NettyReactiveWebServerFactory;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.web.reactive.config.CorsRegistry;
+import org.springframework.web.reactive.config.WebFluxConfigurer;
+
+/**
+ * Reactive Configuration
+ * Active with the "reactive" profile: the /users API is served by the
+ * ReactiveUserController on Netty's event loop, and reads and writes the USER
+ * table through R2DBC. The JPA side stays up for everything else (schema,
+ * presence flush), both point to the same in-memory H2 database.
+ * The R2DBC auto-configuration is excluded in application.properties, its
+ * transaction manager would clash with the JPA one.
+ */
+@Configuration
+@Profile("reactive")
+@EnableConfigurationProperties(DataSourceProperties.class)
+public class ReactiveConfiguration implements WebFluxConfigurer {
+
+  // Tomcat is on the classpath as well, without this bean it would host WebFlux
+  @Bean
+  public NettyReactiveWebServerFactory nettyReactiveWebServerFactory() {
+    return new NettyReactiveWebServerFactory();
+  }
+
+  // Spring Boot backs off from the JDBC DataSource as soon as there is a ConnectionFactory
+  @Bean
+  @ConfigurationProperties("spring.datasource.hikari")
+  public HikariDataSource dataSource(DataSourceProperties properties) {
+    return properties.initializeDataSourceBuilder().type(HikariDataSource.class).build();
+  }
+
+  // same database as the DataSource, so the same credentials
+  @Bean
+  public ConnectionFactory connectionFactory(@Value("${spring.r2dbc.url}") String url, DataSourceProperties properties) {
+    return ConnectionFactories.get(ConnectionFactoryOptions.parse(url).mutate()
+        .option(ConnectionFactoryOptions.USER, properties.determineUsername())
+        .option(ConnectionFactoryOptions.PASSWORD, properties.determinePassword())
+        .build());
+  }
+
+  @Bean
+  public DatabaseClient databaseClient(ConnectionFactory connectionFactory) {
+    return DatabaseClient.create(connectionFactory);
+  }
+
+  @Override
+  public void addCorsMappings(CorsRegistry registry) {
+    registry.addMapping("/**").allowedOrigins("*").allowedMethods("*");
+  }
+}
@@ -0,0 +1,34 @@
+package ch.uzh.ifi.hase.soprafs22;
+
+import org.hibernate.cache.jcache.ConfigSettings;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.orm.jpa.HibernatePropertiesCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import javax.cache.CacheManager;
+import javax.cache.Caching;
+import java.net.URI;
+import java.util.UUID;
+
+/**
+ * Second-level Cache Configuration
+ * Hands Hibernate the JCache CacheManager for its cache regions. The provider
+ * keeps one CacheManager per URI and JVM, so every application context gets a
+ * URI of its own; two contexts in one JVM (as in the tests, each with its own
+ * database) would otherwise share cached users.
+ */
+@Configuration
+public class SecondLevelCacheConfiguration {
+
+  @Bean(destroyMethod = "close")
+  public CacheManager hibernateCacheManager(@Value("${spring.jpa.properties.hibernate.javax.cache.provider}") String provider) {
+    return Caching.getCachingProvider(provider)
+        .getCacheManager(URI.create("hibernate:" + UUID.randomUUID()), getClass().getClassLoader());
+  }
+
+  @Bean
+  public HibernatePropertiesCustomizer secondLevelCacheCustomizer(CacheManager hibernateCacheManager) {
+    return properties -> properties.put(ConfigSettings.CACHE_MANAGER, hibernateCacheManager);
+  }
+}
@@ -0,0 +1,51 @@
+package ch.uzh.ifi.hase.soprafs22;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.task.TaskExecutionAutoConfiguration;
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.core.task.support.TaskExecutorAdapter;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Virtual Thread Configuration
+ * Opt-in (server.virtual-threads.enabled=true, needs a Java 21 runtime): Tomcat
+ * runs every request, and with it the controller and service layer, on its own
+ * virtual thread instead of the bounded platform-thread pool. A request blocked on
+ * JDBC or on the CredentialService then only parks its virtual thread, so the
+ * number of requests in flight is limited by the connection pool, not by
+ * server.tomcat.threads.max. Async MVC work (e.g. the NDJSON export) uses virtual
+ * threads as well. The bytecode stays at Java 15, so the executor is looked up
+ * reflectively.
+ */
+@Configuration
+@ConditionalOnProperty(name = "server.virtual-threads.enabled", havingValue = "true")
+public class VirtualThreadConfiguration {
+
+  @Bean
+  public TomcatProtocolHandlerCustomizer<?> virtualThreadProtocolHandlerCustomizer() {
+    return protocolHandler -> protocolHandler.setExecutor(newVirtualThreadPerTaskExecutor());
+  }
+
+  @Bean(name = TaskExecutionAutoConfiguration.APPLICATION_TASK_EXECUTOR_BEAN_NAME)
+  public AsyncTaskExecutor applicationTaskExecutor() {
+    return new TaskExecutorAdapter(newVirtualThreadPerTaskExecutor());
+  }
+
+  static ExecutorService newVirtualThreadPerTaskExecutor() {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    }
+    catch (NoSuchMethodException e) {
+      throw new IllegalStateException(
+          "server.virtual-threads.enabled needs Java 21 or newer, this is Java " + Runtime.version(), e);
+    }
+    catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("Could not create the virtual thread executor", e);
+    }
+  }
+}
@@ -0,0 +1,30 @@
+package ch.uzh.ifi.hase.soprafs22;
+
+import ch.uzh.ifi.hase.soprafs22.controller.PresenceWebSocketHandler;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+import org.springframework.web.socket.config.annotation.EnableWebSocket;
+import org.springframework.web.socket.config.annotation.WebSocketConfigurer;
+import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry;
+
+/**
+ * WebSocket Configuration
+ * Plain WebSocket (no STOMP, no SockJS) for the live presence of the lobby:
+ * /ws/presence, see PresenceBroadcaster. Open to every origin, like the REST API.
+ */
+@Configuration
+@EnableWebSocket
+@Profile("!reactive")
+public class WebSocketConfiguration implements WebSocketConfigurer {
+
+  private final PresenceWebSocketHandler presenceHandler;
+
+  public WebSocketConfiguration(PresenceWebSocketHandler presenceHandler) {
+    this.presenceHandler = presenceHandler;
+  }
+
+  @Override
+  public void registerWebSocketHandlers(WebSocketHandlerRegistry registry) {
+    registry.addHandler(presenceHandler, "/ws/presence").setAllowedOrigins("*");
+  }
+}
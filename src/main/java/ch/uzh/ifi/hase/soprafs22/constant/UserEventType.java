@@ -0,0 +1,7 @@
+package ch.uzh.ifi.hase.soprafs22.constant;
+
+public enum UserEventType {
+  CREATED,
+  PROFILE,
+  STATUS
+}
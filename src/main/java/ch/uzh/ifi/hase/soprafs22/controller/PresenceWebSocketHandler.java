@@ -0,0 +1,36 @@
+package ch.uzh.ifi.hase.soprafs22.controller;
+
+import ch.uzh.ifi.hase.soprafs22.service.PresenceBroadcaster;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.TextWebSocketHandler;
+
+/**
+ * Presence WebSocket Handler
+ * The /ws/presence endpoint: a connected client receives the presence frames
+ * of the PresenceBroadcaster, it does not send anything itself.
+ */
+@Component
+@Profile("!reactive")
+public class PresenceWebSocketHandler extends TextWebSocketHandler {
+
+  private final PresenceBroadcaster broadcaster;
+
+  PresenceWebSocketHandler(PresenceBroadcaster broadcaster) {
+    this.broadcaster = broadcaster;
+  }
+
+  @Override
+  public void afterConnectionEstablished(WebSocketSession session) throws Exception {
+    if (!broadcaster.register(session)) {
+      session.close(CloseStatus.SERVICE_OVERLOAD);
+    }
+  }
+
+  @Override
+  public void afterConnectionClosed(WebSocketSession session, CloseStatus status) {
+    broadcaster.unregister(session);
+  }
+}
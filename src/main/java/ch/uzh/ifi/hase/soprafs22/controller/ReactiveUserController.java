@@ -0,0 +1,81 @@
+package ch.uzh.ifi.hase.soprafs22.controller;
+
+import ch.uzh.ifi.hase.soprafs22.rest.dto.UserGetDTO;
+import ch.uzh.ifi.hase.soprafs22.rest.dto.UserPostDTO;
+import ch.uzh.ifi.hase.soprafs22.rest.mapper.DTOMapper;
+import ch.uzh.ifi.hase.soprafs22.service.LoginRateLimiter;
+import ch.uzh.ifi.hase.soprafs22.service.ReactiveUserService;
+import ch.uzh.ifi.hase.soprafs22.service.UserService;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.web.bind.annotation.*;
+import reactor.core.publisher.Mono;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+
+/**
+ * Reactive User Controller
+ * The non-blocking version of the UserController ("reactive" profile) for the
+ * list, profile, login, registration and logout requests. Same paths and DTOs,
+ * but every handler returns right away and the response is written once the
+ * ReactiveUserService completes.
+ */
+@RestController
+@Profile("reactive")
+public class ReactiveUserController {
+
+  private final ReactiveUserService userService;
+
+  private final LoginRateLimiter loginRateLimiter;
+
+  ReactiveUserController(ReactiveUserService userService, LoginRateLimiter loginRateLimiter) {
+    this.userService = userService;
+    this.loginRateLimiter = loginRateLimiter;
+  }
+
+  @GetMapping("/users")
+  public Mono<ResponseEntity<List<UserGetDTO>>> getAllUsers(@RequestParam(defaultValue = "0") long after,
+                                                            @RequestParam(defaultValue = "" + UserService.DEFAULT_PAGE_SIZE) int limit) {
+    return userService.getUsers(after, limit)
+        .map(DTOMapper.INSTANCE::convertEntityToUserGetDTO)
+        .collectList()
+        .map(userGetDTOs -> {
+          // a full page means there may be more users -> hand out the cursor for the next one
+          ResponseEntity.BodyBuilder response = ResponseEntity.ok();
+          if (!userGetDTOs.isEmpty() && userGetDTOs.size() == Math.min(limit, UserService.MAX_PAGE_SIZE)) {
+            response.header(UserController.NEXT_CURSOR_HEADER, String.valueOf(userGetDTOs.get(userGetDTOs.size() - 1).getId()));
+          }
+          return response.body(userGetDTOs);
+        });
+  }
+
+  @GetMapping("/users/{id}")
+  public Mono<UserGetDTO> getUsername(@PathVariable long id) {
+    return userService.findByID(id).map(DTOMapper.INSTANCE::convertEntityToUserGetDTO);
+  }
+
+  @PutMapping("/users/login")
+  public Mono<UserGetDTO> checkUsername(@RequestParam String username, @RequestParam(required = false) String pw,
+                                        ServerHttpRequest request) {
+    InetSocketAddress remote = request.getRemoteAddress();
+    return Mono.fromRunnable(() -> loginRateLimiter.checkLogin(username,
+            remote != null && remote.getAddress() != null ? remote.getAddress().getHostAddress() : null))
+        .then(Mono.defer(() -> userService.loginUser(username, pw)))
+        .map(DTOMapper.INSTANCE::convertEntityToUserGetDTO);
+  }
+
+  @PostMapping("/users")
+  @ResponseStatus(HttpStatus.CREATED)
+  public Mono<UserGetDTO> createUser(@RequestBody UserPostDTO userPostDTO) {
+    return userService.createUser(DTOMapper.INSTANCE.convertUserPostDTOtoEntity(userPostDTO))
+        .map(DTOMapper.INSTANCE::convertEntityToUserGetDTO);
+  }
+
+  @PutMapping("/users/logout/")
+  public Mono<Void> doLogout(@RequestParam String token) {
+    return userService.logoutUser(token);
+  }
+}
@@ -0,0 +1,59 @@
+package ch.uzh.ifi.hase.soprafs22.controller;
+
+import ch.uzh.ifi.hase.soprafs22.service.UserEventHub;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.MediaType;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Sinks;
+import reactor.util.concurrent.Queues;
+
+import java.io.IOException;
+import java.time.Duration;
+
+/**
+ * Reactive User Event Controller
+ * The UserEventController of the "reactive" profile: the same GET /users/events
+ * stream from the same UserEventHub, written by WebFlux. The hub's sender thread
+ * only hands a batch to a bounded buffer of the connection (events.subscriber-buffer
+ * events) and never waits for the client; a client that lets it fill up is
+ * disconnected and reloads GET /users when it reconnects.
+ */
+@RestController
+@Profile("reactive")
+public class ReactiveUserEventController {
+
+  private final UserEventHub eventHub;
+
+  private final long timeoutMillis;
+
+  private final int bufferSize;
+
+  ReactiveUserEventController(UserEventHub eventHub, @Value("${events.timeout-ms:1800000}") long timeoutMillis,
+                              @Value("${events.subscriber-buffer:64}") int bufferSize) {
+    this.eventHub = eventHub;
+    this.timeoutMillis = timeoutMillis;
+    this.bufferSize = bufferSize;
+  }
+
+  @GetMapping(value = "/users/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+  public Flux<ServerSentEvent<String>> streamEvents() {
+    return Flux.defer(() -> {
+      Sinks.Many<ServerSentEvent<String>> events = Sinks.many().unicast()
+          .onBackpressureBuffer(Queues.<ServerSentEvent<String>>get(bufferSize).get());
+      // the batch is JSON already, written as it is
+      UserEventHub.Subscription subscription = eventHub.subscribe((id, name, json) -> {
+        if (events.tryEmitNext(ServerSentEvent.builder(json).id(String.valueOf(id)).event(name).build()).isFailure()) {
+          events.tryEmitComplete();
+          throw new IOException("event subscriber does not keep up");
+        }
+      });
+      return events.asFlux()
+          .take(Duration.ofMillis(timeoutMillis))
+          .doFinally(signal -> subscription.cancel());
+    });
+  }
+}
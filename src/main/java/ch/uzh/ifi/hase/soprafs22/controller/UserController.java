@@ -1,16 +1,29 @@
 package ch.uzh.ifi.hase.soprafs22.controller;
-import ch.uzh.ifi.hase.soprafs22.constant.UserStatus;
 import ch.uzh.ifi.hase.soprafs22.entity.User;
+import ch.uzh.ifi.hase.soprafs22.repository.UserView;
+import ch.uzh.ifi.hase.soprafs22.rest.dto.UserBatchResultDTO;
 import ch.uzh.ifi.hase.soprafs22.rest.dto.UserGetDTO;
 import ch.uzh.ifi.hase.soprafs22.rest.dto.UserPostDTO;
 import ch.uzh.ifi.hase.soprafs22.rest.dto.UserPutDTO;
+import ch.uzh.ifi.hase.soprafs22.rest.dto.UserSearchResultDTO;
 import ch.uzh.ifi.hase.soprafs22.rest.mapper.DTOMapper;
+import ch.uzh.ifi.hase.soprafs22.service.LoginRateLimiter;
 import ch.uzh.ifi.hase.soprafs22.service.UserService;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
-import java.text.ParseException;
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -20,38 +33,106 @@ import java.util.List;
  * the user.
  * The controller will receive the request and delegate the execution to the
  * UserService and finally return the result.
+ * With the "reactive" profile the ReactiveUserController takes its place.
  */
 @RestController
+@Profile("!reactive")
 public class UserController {
 
+  static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+
   private final UserService userService;
 
-  UserController(UserService userService) {
+  private final ObjectMapper objectMapper;
+
+  private final LoginRateLimiter loginRateLimiter;
+
+  UserController(UserService userService, ObjectMapper objectMapper, LoginRateLimiter loginRateLimiter) {
     this.userService = userService;
+    this.objectMapper = objectMapper;
+    this.loginRateLimiter = loginRateLimiter;
   }
-// get all the users in a list
+// get one page of users, keyset-paginated on the id (?after=<id>&limit=<n>)
   @GetMapping("/users")
-  @ResponseStatus(HttpStatus.OK)
-  @ResponseBody
-  public List<UserGetDTO> getAllUsers() {
-      // fetch all users in the internal representation
-      List<User> users = userService.getUsers();
-        List<UserGetDTO> userGetDTOs = new ArrayList<>();
+  public ResponseEntity<List<UserGetDTO>> getAllUsers(@RequestParam(defaultValue = "0") long after,
+                                                      @RequestParam(defaultValue = "" + UserService.DEFAULT_PAGE_SIZE) int limit,
+                                                      WebRequest request) {
+      // nothing changed since the client's copy -> 304 without running the query
+      String etag = userService.getUsersETag();
+      if (etag != null && request.checkNotModified(weakETag(etag))) {
+          return null;
+      }
+
+      // fetch one page of users, just the columns of the API representation
+      List<UserView> users = userService.getUsers(after, limit);
+      List<UserGetDTO> userGetDTOs = new ArrayList<>(users.size());
 
       // convert each user to the API representation
+      for (UserView user : users) {
+          userGetDTOs.add(DTOMapper.INSTANCE.convertViewToUserGetDTO(user));
+      }
+
+      // a full page means there may be more users -> hand out the cursor for the next one
+      // (JSON, CBOR, Smile or protobuf depending on Accept, so caches must key on it)
+      ResponseEntity.BodyBuilder response = ResponseEntity.ok().varyBy(HttpHeaders.ACCEPT);
+      if (!users.isEmpty() && users.size() == Math.min(limit, UserService.MAX_PAGE_SIZE)) {
+          response.header(NEXT_CURSOR_HEADER, String.valueOf(users.get(users.size() - 1).getId()));
+      }
+      return response.body(userGetDTOs);
+  }
+
+// export all users as newline-delimited JSON, written row by row while the table is streamed
+  @GetMapping(value = "/users/export", produces = MediaType.APPLICATION_NDJSON_VALUE)
+  public ResponseEntity<StreamingResponseBody> exportUsers() {
+      ObjectWriter writer = objectMapper.writerFor(UserGetDTO.class);
+      StreamingResponseBody body = outputStream -> userService.exportUsers(user -> {
+          try {
+              outputStream.write(writer.writeValueAsBytes(DTOMapper.INSTANCE.convertEntityToUserGetDTO(user)));
+              outputStream.write('\n');
+          }
+          catch (IOException e) {
+              throw new UncheckedIOException(e);
+          }
+      });
+      return ResponseEntity.ok().contentType(MediaType.APPLICATION_NDJSON).body(body);
+  }
+
+// users with a birthday in the next <days> days (today included), soonest first; keyset-paginated like /users
+  @GetMapping("/users/birthdays")
+  public ResponseEntity<List<UserGetDTO>> getUpcomingBirthdays(@RequestParam(defaultValue = "7") int days,
+                                                               @RequestParam(required = false) String after,
+                                                               @RequestParam(defaultValue = "" + UserService.DEFAULT_PAGE_SIZE) int limit) {
+      List<User> users = userService.getUpcomingBirthdays(days, after, limit);
+      List<UserGetDTO> userGetDTOs = new ArrayList<>(users.size());
       for (User user : users) {
           userGetDTOs.add(DTOMapper.INSTANCE.convertEntityToUserGetDTO(user));
       }
-        return userGetDTOs;
-    }
 
-//retrieve userProfile with userID
-  @GetMapping("/users/{id}")
+      ResponseEntity.BodyBuilder response = ResponseEntity.ok();
+      if (!users.isEmpty() && users.size() == Math.min(limit, UserService.MAX_PAGE_SIZE)) {
+          response.header(NEXT_CURSOR_HEADER, UserService.birthdayCursorOf(users.get(users.size() - 1)));
+      }
+      return response.body(userGetDTOs);
+  }
+
+// find users by username: prefix matches first, then similar usernames (?q=<text>&limit=<n>)
+  @GetMapping("/users/search")
   @ResponseStatus(HttpStatus.OK)
   @ResponseBody
-  public UserGetDTO getUsername(@PathVariable long id) {
-      User user = userService.findByID(id);
-      return DTOMapper.INSTANCE.convertEntityToUserGetDTO(user);
+  public List<UserSearchResultDTO> searchUsers(@RequestParam String q,
+                                               @RequestParam(defaultValue = "" + UserService.DEFAULT_SEARCH_LIMIT) int limit) {
+      return userService.searchUsers(q, limit);
+  }
+
+//retrieve userProfile with userID, 304 if the client's copy (If-None-Match) is still current
+  @GetMapping("/users/{id}")
+  public ResponseEntity<UserGetDTO> getUsername(@PathVariable long id, WebRequest request) {
+      String etag = userService.getUserETag(id);
+      if (etag != null && request.checkNotModified(weakETag(etag))) {
+          return null;
+      }
+      UserView user = userService.getProfile(id);
+      return ResponseEntity.ok().varyBy(HttpHeaders.ACCEPT).body(DTOMapper.INSTANCE.convertViewToUserGetDTO(user));
 
   }
 // confirm if user is Current user
@@ -68,7 +149,9 @@ public class UserController {
   @PutMapping("/users/login")
   @ResponseStatus(HttpStatus.OK)
   @ResponseBody
-  public UserGetDTO checkUsername(@RequestParam String username, String pw) {
+  public UserGetDTO checkUsername(@RequestParam String username, String pw, HttpServletRequest request) {
+      // 429 before the lookup when this username or client is guessing
+      loginRateLimiter.checkLogin(username, request.getRemoteAddr());
       User user = userService.loginUser(username, pw);
       return DTOMapper.INSTANCE.convertEntityToUserGetDTO(user);
   }
@@ -88,6 +171,19 @@ public class UserController {
     }
 
 
+// register many users at once, with one result per entry
+    @PostMapping("/users/batch")
+    @ResponseStatus(HttpStatus.OK)
+    @ResponseBody
+    public List<UserBatchResultDTO> createUsers(@RequestBody List<UserPostDTO> userPostDTOs) {
+        // convert API users to internal representation
+        List<User> userInputs = new ArrayList<>(userPostDTOs.size());
+        for (UserPostDTO userPostDTO : userPostDTOs) {
+            userInputs.add(DTOMapper.INSTANCE.convertUserPostDTOtoEntity(userPostDTO));
+        }
+        return userService.createUsers(userInputs);
+    }
+
   @PutMapping("/users/logout/")
   @ResponseStatus(HttpStatus.OK)
   @ResponseBody
@@ -95,10 +191,45 @@ public class UserController {
      userService.logoutUser(token);
    }
 
+  @PutMapping("/users/heartbeat")
+  @ResponseStatus(HttpStatus.NO_CONTENT)
+  @ResponseBody
+  public void heartbeat(@RequestParam String token) {
+     userService.heartbeat(token);
+   }
+
+// partial update of the profile; the version to check comes from If-Match (the ETag of GET /users/{id}) or the body
   @PutMapping("/users/{id}")
   @ResponseStatus(HttpStatus.NO_CONTENT)
   @ResponseBody
-  public void editProfile(@RequestBody UserPutDTO userPutDTO, @PathVariable long id) {
-      userService.updateUser(userPutDTO);
+  public void editProfile(@RequestBody UserPutDTO userPutDTO, @PathVariable long id,
+                          @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch) {
+      Long expectedVersion = ifMatch != null ? versionOf(ifMatch) : userPutDTO.getVersion();
+      userService.updateUser(id, userPutDTO, expectedVersion);
+  }
+
+  // weak, because server.compression gzips the same state into different bytes;
+  // Tomcat leaves responses with a strong ETag uncompressed
+  static String weakETag(String value) {
+      return "W/\"" + value + "\"";
+  }
+
+  // "<version>-<status>", possibly weak; "*" matches any version
+  static Long versionOf(String etag) {
+      String value = etag.trim();
+      if (value.equals("*")) {
+          return null;
+      }
+      if (value.startsWith("W/")) {
+          value = value.substring(2);
+      }
+      value = value.replace("\"", "");
+      int dash = value.indexOf('-');
+      try {
+          return Long.parseLong(dash < 0 ? value : value.substring(0, dash));
+      }
+      catch (NumberFormatException e) {
+          throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "If-Match is not an ETag of this user");
+      }
   }
 }
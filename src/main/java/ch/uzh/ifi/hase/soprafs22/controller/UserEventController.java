@@ -0,0 +1,42 @@
+package ch.uzh.ifi.hase.soprafs22.controller;
+
+import ch.uzh.ifi.hase.soprafs22.service.UserEventHub;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+/**
+ * User Event Controller
+ * Streams the changes of users as Server-Sent Events, instead of polling
+ * GET /users: every "users" event is a JSON array with one delta per changed
+ * user (see UserEventHub). After a "resync" event some deltas were dropped and
+ * the list has to be loaded again. A client loads GET /users once when it
+ * connects and applies the deltas from then on.
+ */
+@RestController
+@Profile("!reactive")
+public class UserEventController {
+
+  private final UserEventHub eventHub;
+
+  private final long timeoutMillis;
+
+  UserEventController(UserEventHub eventHub, @Value("${events.timeout-ms:1800000}") long timeoutMillis) {
+    this.eventHub = eventHub;
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  @GetMapping(value = "/users/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+  public SseEmitter streamEvents() {
+    SseEmitter emitter = new SseEmitter(timeoutMillis);
+    // the batch is JSON already, written as it is
+    UserEventHub.Subscription subscription = eventHub.subscribe((id, name, json) ->
+        emitter.send(SseEmitter.event().id(String.valueOf(id)).name(name).data(json, MediaType.APPLICATION_JSON)));
+    emitter.onCompletion(subscription::cancel);
+    emitter.onError(e -> subscription.cancel());
+    return emitter;
+  }
+}
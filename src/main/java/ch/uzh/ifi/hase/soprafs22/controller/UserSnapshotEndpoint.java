@@ -0,0 +1,49 @@
+package ch.uzh.ifi.hase.soprafs22.controller;
+
+import ch.uzh.ifi.hase.soprafs22.service.UserSnapshotService;
+import org.springframework.boot.actuate.endpoint.web.annotation.RestControllerEndpoint;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * User Snapshot Endpoint
+ * /actuator/snapshot: GET streams a snapshot of all users, POST restores one
+ * into this (empty) instance, see UserSnapshotService. A new node is warmed with
+ * curl http://127.0.0.1:8081/actuator/snapshot | curl --data-binary @- -H 'Content-Type: application/octet-stream' http://new/actuator/snapshot
+ * Only exposed with the "snapshot" profile, on the management port that only
+ * accepts local connections: the snapshot holds every password hash and token.
+ */
+@Component
+@Profile("!reactive")
+@RestControllerEndpoint(id = "snapshot")
+public class UserSnapshotEndpoint {
+
+  private final UserSnapshotService snapshotService;
+
+  UserSnapshotEndpoint(UserSnapshotService snapshotService) {
+    this.snapshotService = snapshotService;
+  }
+
+  @GetMapping(produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+  public ResponseEntity<StreamingResponseBody> export() {
+    return ResponseEntity.ok()
+        .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"users.snapshot\"")
+        .body(snapshotService::export);
+  }
+
+  @PostMapping(consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+  public Map<String, Long> restore(InputStream snapshot) throws IOException {
+    return Collections.singletonMap("restored", snapshotService.restore(snapshot));
+  }
+}
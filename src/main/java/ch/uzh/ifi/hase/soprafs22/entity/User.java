@@ -1,10 +1,16 @@
 package ch.uzh.ifi.hase.soprafs22.entity;
 
 import ch.uzh.ifi.hase.soprafs22.constant.UserStatus;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+import org.hibernate.annotations.NaturalId;
+import org.hibernate.annotations.NaturalIdCache;
 import org.springframework.format.annotation.DateTimeFormat;
 
 import javax.persistence.*;
 import java.io.Serializable;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
 import java.util.Date;
 
 /**
@@ -16,40 +22,78 @@ import java.util.Date;
  * - nullable = false -> this cannot be left empty
  * - unique = true -> this value must be unqiue across the database -> composes
  * the primary key
+ * Users are kept in the second-level cache, by id and by username (natural id),
+ * see UserRepositoryCustom.
+ * The table itself is created by the Flyway migrations in db/migration, the
+ * constraint and index names below are the ones they use.
  */
 @Entity
-@Table(name = "USER")
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = User.CACHE_REGION)
+@NaturalIdCache(region = User.NATURAL_ID_CACHE_REGION)
+@Table(name = "USER", uniqueConstraints = @UniqueConstraint(name = User.USERNAME_CONSTRAINT, columnNames = "username"),
+    indexes = @Index(name = User.BIRTHDAY_KEY_INDEX, columnList = "birthday_key, id"))
 public class User implements Serializable {
 
   private static final long serialVersionUID = 1L;
 
+  public static final String USERNAME_CONSTRAINT = "UK_USER_USERNAME";
+
+  public static final String BIRTHDAY_KEY_INDEX = "IX_USER_BIRTHDAY_KEY";
+
+  public static final int ID_ALLOCATION_SIZE = 50;
+
+  // JCache names of the second-level cache regions, sized in application.conf
+  public static final String CACHE_REGION = "user";
+  public static final String NATURAL_ID_CACHE_REGION = "user-natural-id";
+
   @DateTimeFormat
   //@Column (nullable = false)
   @GeneratedValue
   private Date creation_date;
 
+  // pooled sequence: one sequence call hands out ID_ALLOCATION_SIZE ids
   @Id
-  @GeneratedValue
+  @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "user_seq")
+  @SequenceGenerator(name = "user_seq", sequenceName = "USER_SEQ", allocationSize = User.ID_ALLOCATION_SIZE)
   private Long id;
 
-  @Column(nullable = false)
+  // the password in clear as the client sent it on registration (UserPostDTO.name); never
+  // stored, UserService hashes it into password and clears it
+  @Transient
   private String name;
 
-  @Column(nullable = false, unique = true)
+  // mutable: a profile edit may change it, see UserRepositoryCustom.updateProfile
+  @NaturalId(mutable = true)
+  @Column(nullable = false)
   private String username;
 
   @Column(unique = true)
   private String token;
 
+  // bcrypt hash of the password (the name is the password, see UserService.loginUser)
+  @Column(length = 60)
+  private String password;
+
   @Column(nullable = false)
   private boolean logged_in;
 
-  @Column(nullable = false)
+  // written only in batches by UserService.flushPresence(), see PresenceTracker
+  @Column(nullable = false, updatable = false)
   private UserStatus status;
 
   @DateTimeFormat
   private Date birthday;
 
+  // month * 100 + day of the birthday in UTC (315 for March 15), set along with the birthday;
+  // indexed, so the upcoming birthdays are a range scan, see UserRepository.findBirthdays
+  @Column(name = "birthday_key")
+  private Integer birthdayKey;
+
+  // bumped on every write, including the token update of a login; the ETag of the user
+  @Version
+  private Long version;
+
 
 
   public void setStatus(UserStatus s){this.status = s;}
@@ -59,7 +103,23 @@ public class User implements Serializable {
   public Boolean getLogged_in(){return this.status.getBool();}
 
   public Date getBirthday(){return birthday;}
-  public void setBirthday(Date date){this.birthday = date;}
+  public void setBirthday(Date date){
+    this.birthday = date;
+    this.birthdayKey = birthdayKeyOf(date);
+  }
+
+  public Integer getBirthdayKey(){return birthdayKey;}
+
+  /**
+   * @return the birthday_key of a birthday (month * 100 + day, in UTC), null for no birthday
+   */
+  public static Integer birthdayKeyOf(Date birthday) {
+    if (birthday == null) {
+      return null;
+    }
+    ZonedDateTime date = birthday.toInstant().atZone(ZoneOffset.UTC);
+    return date.getMonthValue() * 100 + date.getDayOfMonth();
+  }
 
   public Date getCreation_date(){return creation_date;}
   public void setCreation_date(Date date){this.creation_date = date;}
@@ -92,5 +152,19 @@ public class User implements Serializable {
     this.token = token;
   }
 
+  public Long getVersion() {
+    return version;
+  }
+  public void setVersion(Long version) {
+    this.version = version;
+  }
+
+  public String getPassword() {
+    return password;
+  }
+  public void setPassword(String password) {
+    this.password = password;
+  }
+
 
 }
@@ -0,0 +1,103 @@
+package ch.uzh.ifi.hase.soprafs22.metrics;
+
+import ch.uzh.ifi.hase.soprafs22.entity.User;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.jpa.HibernateQueryMetrics;
+import org.hibernate.SessionFactory;
+import org.hibernate.boot.Metadata;
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.EventType;
+import org.hibernate.event.spi.PostLoadEventListener;
+import org.hibernate.integrator.spi.Integrator;
+import org.hibernate.jpa.boot.spi.IntegratorProvider;
+import org.hibernate.service.spi.SessionFactoryServiceRegistry;
+import org.hibernate.stat.CacheableDataStatistics;
+import org.hibernate.stat.Statistics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.orm.jpa.HibernatePropertiesCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import javax.persistence.EntityManagerFactory;
+import java.util.Collections;
+
+/**
+ * Hibernate Metrics Configuration
+ * This class hooks the per-request counting of RequestStatistics into Hibernate
+ * and into the request handling (RequestStatisticsFilter), and publishes the execution statistics of every query (count, total and max
+ * time) as hibernate.query metrics, so the slowest queries show up in Prometheus.
+ * The session-wide statistics (hibernate.*) are bound by Spring Boot itself once
+ * hibernate.generate_statistics is on; the hit ratios of the second-level cache
+ * of User are added here.
+ */
+@Configuration
+public class HibernateMetricsConfiguration {
+
+  static final String INTEGRATOR_PROVIDER = "hibernate.integrator_provider";
+
+  @Bean
+  public HibernatePropertiesCustomizer requestStatisticsCustomizer() {
+    return properties -> {
+      properties.put(AvailableSettings.AUTO_SESSION_EVENTS_LISTENER, RequestStatisticsSessionListener.class.getName());
+      properties.put(INTEGRATOR_PROVIDER, (IntegratorProvider) () -> Collections.singletonList(new EntityLoadIntegrator()));
+    };
+  }
+
+  @Bean
+  public RequestStatisticsFilter requestStatisticsFilter(MeterRegistry registry,
+                                                         @Value("${request-statistics.statement-warn-threshold:10}") int statementWarnThreshold) {
+    return new RequestStatisticsFilter(registry, statementWarnThreshold);
+  }
+
+  @Bean
+  public HibernateQueryMetrics hibernateQueryMetrics(EntityManagerFactory entityManagerFactory) {
+    return new HibernateQueryMetrics(entityManagerFactory.unwrap(SessionFactory.class), "entityManagerFactory", Tags.empty());
+  }
+
+  /**
+   * hibernate.cache.hit.ratio{cache=entity|natural-id}: share of the lookups of
+   * User by id and by username answered from the second-level cache, since startup.
+   * The raw counts are in hibernate.second.level.cache.requests and
+   * hibernate.cache.natural.id.requests.
+   */
+  @Bean
+  public MeterBinder userCacheMetrics(EntityManagerFactory entityManagerFactory) {
+    Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+    String entityName = User.class.getName();
+    return registry -> {
+      Gauge.builder("hibernate.cache.hit.ratio", statistics, s -> hitRatio(s.getEntityStatistics(entityName)))
+          .tag("entity", entityName)
+          .tag("cache", "entity")
+          .register(registry);
+      Gauge.builder("hibernate.cache.hit.ratio", statistics, s -> hitRatio(s.getNaturalIdStatistics(entityName)))
+          .tag("entity", entityName)
+          .tag("cache", "natural-id")
+          .register(registry);
+    };
+  }
+
+  private static double hitRatio(CacheableDataStatistics statistics) {
+    long requests = statistics.getCacheHitCount() + statistics.getCacheMissCount();
+    return requests == 0 ? Double.NaN : (double) statistics.getCacheHitCount() / requests;
+  }
+
+  private static class EntityLoadIntegrator implements Integrator {
+
+    @Override
+    public void integrate(Metadata metadata, SessionFactoryImplementor sessionFactory,
+                          SessionFactoryServiceRegistry serviceRegistry) {
+      serviceRegistry.getService(EventListenerRegistry.class)
+          .appendListeners(EventType.POST_LOAD, (PostLoadEventListener) event -> RequestStatistics.entityLoaded());
+    }
+
+    @Override
+    public void disintegrate(SessionFactoryImplementor sessionFactory, SessionFactoryServiceRegistry serviceRegistry) {
+      // nothing to release
+    }
+  }
+}
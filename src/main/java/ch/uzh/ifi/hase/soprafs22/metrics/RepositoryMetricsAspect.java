@@ -0,0 +1,49 @@
+package ch.uzh.ifi.hase.soprafs22.metrics;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.springframework.stereotype.Component;
+
+/**
+ * Repository Metrics Aspect
+ * This class times every call into the UserRepository, including the methods
+ * inherited from JpaRepository (findAll, findById, save, ...).
+ * The timer is called user.repository and is tagged with the method name and the
+ * exception thrown, if any, so request latency can be split into database time
+ * and everything else.
+ */
+@Aspect
+@Component
+public class RepositoryMetricsAspect {
+
+  static final String METRIC_NAME = "user.repository";
+
+  private final MeterRegistry registry;
+
+  public RepositoryMetricsAspect(MeterRegistry registry) {
+    this.registry = registry;
+  }
+
+  @Around("execution(* ch.uzh.ifi.hase.soprafs22.repository.UserRepository+.*(..))")
+  public Object time(ProceedingJoinPoint joinPoint) throws Throwable {
+    Timer.Sample sample = Timer.start(registry);
+    String exception = "none";
+    try {
+      return joinPoint.proceed();
+    }
+    catch (Throwable t) {
+      exception = t.getClass().getSimpleName();
+      throw t;
+    }
+    finally {
+      sample.stop(Timer.builder(METRIC_NAME)
+          .description("Time spent in UserRepository calls")
+          .tag("method", joinPoint.getSignature().getName())
+          .tag("exception", exception)
+          .register(registry));
+    }
+  }
+}
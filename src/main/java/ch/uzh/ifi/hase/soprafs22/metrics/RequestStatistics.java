@@ -0,0 +1,62 @@
+package ch.uzh.ifi.hase.soprafs22.metrics;
+
+/**
+ * Request Statistics
+ * This class counts what Hibernate does on behalf of one request: JDBC statements
+ * executed (a JDBC batch counts once), flushes and entities loaded.
+ * The counts are kept per thread between begin() and end(); work done outside a
+ * counted request (scheduled jobs, streamed responses) is not counted.
+ */
+public final class RequestStatistics {
+
+  private static final ThreadLocal<RequestStatistics> CURRENT = new ThreadLocal<>();
+
+  private int statements;
+  private int flushes;
+  private int entitiesLoaded;
+
+  private RequestStatistics() {}
+
+  public static RequestStatistics begin() {
+    RequestStatistics statistics = new RequestStatistics();
+    CURRENT.set(statistics);
+    return statistics;
+  }
+
+  public static void end() {
+    CURRENT.remove();
+  }
+
+  static void statementExecuted() {
+    RequestStatistics statistics = CURRENT.get();
+    if (statistics != null) {
+      statistics.statements++;
+    }
+  }
+
+  static void flushed() {
+    RequestStatistics statistics = CURRENT.get();
+    if (statistics != null) {
+      statistics.flushes++;
+    }
+  }
+
+  static void entityLoaded() {
+    RequestStatistics statistics = CURRENT.get();
+    if (statistics != null) {
+      statistics.entitiesLoaded++;
+    }
+  }
+
+  public int getStatements() {
+    return statements;
+  }
+
+  public int getFlushes() {
+    return flushes;
+  }
+
+  public int getEntitiesLoaded() {
+    return entitiesLoaded;
+  }
+}
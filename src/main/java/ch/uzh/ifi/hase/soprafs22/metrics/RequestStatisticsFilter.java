@@ -0,0 +1,71 @@
+package ch.uzh.ifi.hase.soprafs22.metrics;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.servlet.HandlerMapping;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Request Statistics Filter
+ * This class counts the Hibernate work of every request (see RequestStatistics)
+ * and records it per request mapping as hibernate.request.statements,
+ * hibernate.request.flushes and hibernate.request.entities.loaded.
+ * Requests that execute more than request-statistics.statement-warn-threshold
+ * statements are logged.
+ */
+public class RequestStatisticsFilter extends OncePerRequestFilter {
+
+  private final Logger log = LoggerFactory.getLogger(RequestStatisticsFilter.class);
+
+  private final MeterRegistry registry;
+
+  private final int statementWarnThreshold;
+
+  public RequestStatisticsFilter(MeterRegistry registry, int statementWarnThreshold) {
+    this.registry = registry;
+    this.statementWarnThreshold = statementWarnThreshold;
+  }
+
+  @Override
+  protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+      throws ServletException, IOException {
+    RequestStatistics statistics = RequestStatistics.begin();
+    try {
+      filterChain.doFilter(request, response);
+    }
+    finally {
+      RequestStatistics.end();
+      record(request, statistics);
+    }
+  }
+
+  private void record(HttpServletRequest request, RequestStatistics statistics) {
+    Object pattern = request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+    String uri = pattern != null ? pattern.toString() : "UNKNOWN";
+
+    summary("hibernate.request.statements", request, uri).record(statistics.getStatements());
+    summary("hibernate.request.flushes", request, uri).record(statistics.getFlushes());
+    summary("hibernate.request.entities.loaded", request, uri).record(statistics.getEntitiesLoaded());
+
+    if (statistics.getStatements() > statementWarnThreshold) {
+      log.warn("Request {} {} executed {} statements in {} flushes and loaded {} entities (threshold {})",
+          request.getMethod(), uri, statistics.getStatements(), statistics.getFlushes(),
+          statistics.getEntitiesLoaded(), statementWarnThreshold);
+    }
+  }
+
+  private DistributionSummary summary(String name, HttpServletRequest request, String uri) {
+    return DistributionSummary.builder(name)
+        .tag("method", request.getMethod())
+        .tag("uri", uri)
+        .register(registry);
+  }
+}
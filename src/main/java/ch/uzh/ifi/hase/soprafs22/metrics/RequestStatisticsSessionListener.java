@@ -0,0 +1,27 @@
+package ch.uzh.ifi.hase.soprafs22.metrics;
+
+import org.hibernate.BaseSessionEventListener;
+
+/**
+ * Hibernate creates one instance per session (see hibernate.session.events.auto)
+ * and reports every statement and flush of the session to it.
+ */
+public class RequestStatisticsSessionListener extends BaseSessionEventListener {
+
+  private static final long serialVersionUID = 1L;
+
+  @Override
+  public void jdbcExecuteStatementStart() {
+    RequestStatistics.statementExecuted();
+  }
+
+  @Override
+  public void jdbcExecuteBatchStart() {
+    RequestStatistics.statementExecuted();
+  }
+
+  @Override
+  public void flushEnd(int numberOfEntities, int numberOfCollections) {
+    RequestStatistics.flushed();
+  }
+}
@@ -0,0 +1,43 @@
+package ch.uzh.ifi.hase.soprafs22.metrics;
+
+import ch.uzh.ifi.hase.soprafs22.service.PresenceTracker;
+import ch.uzh.ifi.hase.soprafs22.service.TokenSessionCache;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.stereotype.Component;
+
+/**
+ * User Metrics
+ * This class publishes the state of the in-memory user components: hits, misses
+ * and size of the token session cache, and the number of users ONLINE.
+ */
+@Component
+public class UserMetrics implements MeterBinder {
+
+  private final TokenSessionCache sessionCache;
+
+  private final PresenceTracker presenceTracker;
+
+  public UserMetrics(TokenSessionCache sessionCache, PresenceTracker presenceTracker) {
+    this.sessionCache = sessionCache;
+    this.presenceTracker = presenceTracker;
+  }
+
+  @Override
+  public void bindTo(MeterRegistry registry) {
+    FunctionCounter.builder("user.sessions.cache.requests", sessionCache, TokenSessionCache::getHitCount)
+        .tag("result", "hit")
+        .register(registry);
+    FunctionCounter.builder("user.sessions.cache.requests", sessionCache, TokenSessionCache::getMissCount)
+        .tag("result", "miss")
+        .register(registry);
+    FunctionCounter.builder("user.sessions.cache.evictions", sessionCache, TokenSessionCache::getEvictionCount)
+        .register(registry);
+    Gauge.builder("user.sessions.cache.size", sessionCache, TokenSessionCache::size)
+        .register(registry);
+    Gauge.builder("user.presence.online", presenceTracker, PresenceTracker::onlineCount)
+        .register(registry);
+  }
+}
@@ -0,0 +1,144 @@
+package ch.uzh.ifi.hase.soprafs22.repository;
+
+import ch.uzh.ifi.hase.soprafs22.constant.UserStatus;
+import ch.uzh.ifi.hase.soprafs22.entity.User;
+import io.r2dbc.spi.Row;
+import org.springframework.context.annotation.Profile;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.Date;
+
+/**
+ * Reactive User Repository
+ * Non-blocking access to the USER table over R2DBC, for the "reactive" profile.
+ * The table and the USER_SEQ sequence are the ones Hibernate creates for the
+ * User entity; ids are taken from the sequence in blocks of
+ * User.ID_ALLOCATION_SIZE, the same way Hibernate's pooled optimizer does.
+ */
+@Repository
+@Profile("reactive")
+public class ReactiveUserRepository {
+
+  private static final String COLUMNS = "id, username, token, password, status, logged_in, creation_date, birthday, version";
+
+  private final DatabaseClient databaseClient;
+
+  private final Object idLock = new Object();
+  private long nextId = 1;
+  private long maxId = 0;
+
+  public ReactiveUserRepository(DatabaseClient databaseClient) {
+    this.databaseClient = databaseClient;
+  }
+
+  public Flux<User> findByIdGreaterThanOrderByIdAsc(long id, int limit) {
+    return databaseClient.sql("select " + COLUMNS + " from user where id > :id order by id limit :limit")
+        .bind("id", id)
+        .bind("limit", limit)
+        .map(ReactiveUserRepository::toUser)
+        .all();
+  }
+
+  public Mono<User> findById(long id) {
+    return databaseClient.sql("select " + COLUMNS + " from user where id = :id")
+        .bind("id", id)
+        .map(ReactiveUserRepository::toUser)
+        .one();
+  }
+
+  public Mono<User> findByUsername(String username) {
+    return databaseClient.sql("select " + COLUMNS + " from user where username = :username")
+        .bind("username", username)
+        .map(ReactiveUserRepository::toUser)
+        .one();
+  }
+
+  public Mono<Long> findIdByToken(String token) {
+    return databaseClient.sql("select id from user where token = :token")
+        .bind("token", token)
+        .map(row -> row.get("id", Long.class))
+        .one();
+  }
+
+  /**
+   * Inserts the user with the next id of the sequence.
+   *
+   * @return the user with its id set, or a DataIntegrityViolationException if a
+   * unique constraint is violated
+   */
+  public Mono<User> insert(User user) {
+    return nextId().flatMap(id -> {
+      user.setId(id);
+      DatabaseClient.GenericExecuteSpec insert = databaseClient
+          .sql("insert into user (" + COLUMNS + ", birthday_key) values "
+              + "(:id, :username, :token, :password, :status, :logged_in, :creation_date, :birthday, 0, :birthday_key)")
+          .bind("id", id)
+          .bind("username", user.getUsername())
+          .bind("token", user.getToken())
+          .bind("password", user.getPassword())
+          .bind("status", user.getStatus().ordinal())
+          .bind("logged_in", user.getLogged_in())
+          .bind("creation_date", toLocalDateTime(user.getCreation_date()));
+      insert = user.getBirthday() == null
+          ? insert.bindNull("birthday", LocalDateTime.class).bindNull("birthday_key", Integer.class)
+          : insert.bind("birthday", toLocalDateTime(user.getBirthday())).bind("birthday_key", user.getBirthdayKey());
+      user.setVersion(0L);
+      return insert.fetch().rowsUpdated().thenReturn(user);
+    });
+  }
+
+  public Mono<Integer> updateToken(long id, String token) {
+    // a new token is a change of the user like any other, see User#version
+    return databaseClient.sql("update user set token = :token, version = version + 1 where id = :id")
+        .bind("token", token)
+        .bind("id", id)
+        .fetch()
+        .rowsUpdated();
+  }
+
+  private Mono<Long> nextId() {
+    synchronized (idLock) {
+      if (nextId <= maxId) {
+        return Mono.just(nextId++);
+      }
+    }
+    // block used up -> the sequence value is the upper end of the next one;
+    // two concurrent refills only waste the rest of a block, never reuse an id
+    return databaseClient.sql("select next value for USER_SEQ")
+        .map(row -> row.get(0, Long.class))
+        .one()
+        .map(hi -> {
+          synchronized (idLock) {
+            nextId = Math.max(1, hi - User.ID_ALLOCATION_SIZE + 1);
+            maxId = hi;
+            return nextId++;
+          }
+        });
+  }
+
+  private static User toUser(Row row) {
+    User user = new User();
+    user.setId(row.get("id", Long.class));
+    user.setUsername(row.get("username", String.class));
+    user.setToken(row.get("token", String.class));
+    user.setPassword(row.get("password", String.class));
+    user.setStatus(UserStatus.values()[row.get("status", Integer.class)]);
+    user.setCreation_date(toDate(row.get("creation_date", LocalDateTime.class)));
+    user.setBirthday(toDate(row.get("birthday", LocalDateTime.class)));
+    user.setVersion(row.get("version", Long.class));
+    return user;
+  }
+
+  private static LocalDateTime toLocalDateTime(Date date) {
+    return date == null ? null : new Timestamp(date.getTime()).toLocalDateTime();
+  }
+
+  private static Date toDate(LocalDateTime dateTime) {
+    return dateTime == null ? null : Timestamp.valueOf(dateTime);
+  }
+}
@@ -1,19 +1,75 @@
 package ch.uzh.ifi.hase.soprafs22.repository;
 
 import ch.uzh.ifi.hase.soprafs22.entity.User;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
-import java.util.Optional;
+import javax.persistence.QueryHint;
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.hibernate.jpa.QueryHints.HINT_FETCH_SIZE;
 
 @Repository("userRepository")
-public interface UserRepository extends JpaRepository<User, Long> {
-  User findByName(String name);
+public interface UserRepository extends JpaRepository<User, Long>, UserRepositoryCustom {
+  int EXPORT_FETCH_SIZE = 500;
 
-  User findByUsername(String username);
+  // the columns of UserGetDTO, see UserView
+  String USER_VIEW = "select new ch.uzh.ifi.hase.soprafs22.repository.UserView("
+      + "u.id, u.username, u.creation_date, u.token, u.status, u.birthday, u.version) from User u";
 
   User findByToken(String token);
 
-  User findById(long Id);
+  @Query("select u.version from User u where u.id = :id")
+  Long findVersionById(@Param("id") long id);
+
+  @Query("select u.username from User u where u.username in :usernames")
+  List<String> findExistingUsernames(@Param("usernames") Collection<String> usernames);
+
+  /**
+   * Keyset page: the users with an id strictly greater than the given cursor,
+   * in id order. Only the size of the pageable is used, the offset is always 0
+   * so the cost does not grow with the position in the table.
+   */
+  @Query(USER_VIEW + " where u.id > :id order by u.id")
+  List<UserView> findByIdGreaterThanOrderByIdAsc(@Param("id") long id, Pageable pageable);
+
+  /**
+   * @return the user as a UserView, null if there is no such user
+   */
+  @Query(USER_VIEW + " where u.id = :id")
+  UserView findViewById(@Param("id") long id);
+
+  /**
+   * Keyset page of the users whose birthday_key lies in [from, to], ordered by
+   * birthday_key and id, starting after the user (afterKey, afterId). A range
+   * scan of the index on (birthday_key, id), see User#birthdayKey.
+   */
+  @Query("select u from User u where u.birthdayKey between :from and :to "
+      + "and (u.birthdayKey > :afterKey or (u.birthdayKey = :afterKey and u.id > :afterId)) "
+      + "order by u.birthdayKey, u.id")
+  List<User> findBirthdays(@Param("from") int from, @Param("to") int to, @Param("afterKey") int afterKey,
+                           @Param("afterId") long afterId, Pageable pageable);
+
+  /**
+   * Streams the whole table in id order. The JDBC driver fetches EXPORT_FETCH_SIZE
+   * rows per round trip; the stream has to be consumed (and closed) inside a
+   * transaction.
+   */
+  @QueryHints(@QueryHint(name = HINT_FETCH_SIZE, value = "" + EXPORT_FETCH_SIZE))
+  Stream<User> streamAllByOrderByIdAsc();
+
+  /**
+   * Streams id and username of every user, for the UsernameIndex. Same fetch
+   * size and transaction rules as streamAllByOrderByIdAsc.
+   */
+  @QueryHints(@QueryHint(name = HINT_FETCH_SIZE, value = "" + EXPORT_FETCH_SIZE))
+  @Query("select u.id, u.username from User u")
+  Stream<Object[]> streamUsernames();
 
 }
@@ -0,0 +1,59 @@
+package ch.uzh.ifi.hase.soprafs22.repository;
+
+import ch.uzh.ifi.hase.soprafs22.constant.UserStatus;
+import ch.uzh.ifi.hase.soprafs22.entity.User;
+
+import java.util.Collection;
+import java.util.Date;
+
+/**
+ * Hand-written part of the UserRepository, implemented by UserRepositoryImpl.
+ * The lookups go through the second-level cache of User, the updates keep it
+ * consistent by evicting just the users they write.
+ */
+public interface UserRepositoryCustom {
+
+  /**
+   * @return the user, from the second-level cache if it is there; null if
+   * there is no such user
+   */
+  User findById(long id);
+
+  /**
+   * Natural-id lookup: the username is resolved to the id through the
+   * natural-id cache, the user itself comes from the entity cache.
+   *
+   * @return null if there is no such user
+   */
+  User findByUsername(String username);
+
+  /**
+   * Sets a new token and bumps the version of the user.
+   */
+  int updateToken(long id, String token);
+
+  /**
+   * Writes the status of many users at once, see UserService.flushPresence().
+   */
+  int updateStatus(UserStatus status, Collection<Long> ids);
+
+  /**
+   * Writes the given profile fields of one user in a single UPDATE statement,
+   * without loading the user first. A null argument leaves its column as it
+   * is; the version is bumped in the same statement.
+   *
+   * @param expectedVersion only update if the user still has this version,
+   *                        null to update regardless of the version
+   * @return the number of updated rows: 0 if there is no such user or its
+   * version is not the expected one
+   */
+  int updateProfile(long id, Long expectedVersion, String username, Date birthday);
+
+  /**
+   * Sets the birthday_key of the users that have a birthday but no key yet,
+   * i.e. rows written before the column existed.
+   *
+   * @return the number of updated rows
+   */
+  int backfillBirthdayKeys();
+}
@@ -0,0 +1,166 @@
+package ch.uzh.ifi.hase.soprafs22.repository;
+
+import ch.uzh.ifi.hase.soprafs22.constant.UserStatus;
+import ch.uzh.ifi.hase.soprafs22.entity.User;
+import org.hibernate.Cache;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.query.NativeQuery;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Picked up by Spring Data as the implementation of UserRepositoryCustom
+ * (the "Impl" postfix), its methods are part of every UserRepository.
+ * The updates are native statements: for a JPQL or criteria bulk update
+ * Hibernate drops the whole User region of the second-level cache, here the
+ * statements are tied to a query space no entity uses and only the written
+ * users are evicted.
+ */
+class UserRepositoryImpl implements UserRepositoryCustom {
+
+  // no entity maps to this query space, so Hibernate leaves the cache regions alone
+  private static final String UNCACHED_QUERY_SPACE = "user_update";
+
+  // ids per IN list of an update
+  private static final int UPDATE_CHUNK_SIZE = 1000;
+
+  @PersistenceContext
+  private EntityManager entityManager;
+
+  @Override
+  @Transactional(readOnly = true)
+  public User findById(long id) {
+    return entityManager.find(User.class, id);
+  }
+
+  @Override
+  @Transactional(readOnly = true)
+  public User findByUsername(String username) {
+    if (username == null) {
+      return null;
+    }
+    return entityManager.unwrap(Session.class).bySimpleNaturalId(User.class).load(username);
+  }
+
+  @Override
+  @Transactional
+  public int updateToken(long id, String token) {
+    // a new token is a change of the user like any other, see User#version
+    NativeQuery<?> update = nativeUpdate("update user set token = :token, version = version + 1 where id = :id")
+        .setParameter("token", token)
+        .setParameter("id", id);
+    return execute(update, Collections.singleton(id), false);
+  }
+
+  @Override
+  @Transactional
+  public int updateStatus(UserStatus status, Collection<Long> ids) {
+    NativeQuery<?> update = nativeUpdate("update user set status = :status where id in (:ids)")
+        .setParameter("status", status.ordinal())
+        .setParameterList("ids", ids);
+    return execute(update, ids, false);
+  }
+
+  @Override
+  @Transactional
+  public int updateProfile(long id, Long expectedVersion, String username, Date birthday) {
+    // only the columns that change end up in the SET clause
+    StringBuilder sql = new StringBuilder("update user set ");
+    if (username != null) {
+      sql.append("username = :username, ");
+    }
+    if (birthday != null) {
+      sql.append("birthday = :birthday, birthday_key = :birthdayKey, ");
+    }
+    sql.append("version = version + 1 where id = :id");
+    if (expectedVersion != null) {
+      sql.append(" and version = :version");
+    }
+
+    NativeQuery<?> update = nativeUpdate(sql.toString()).setParameter("id", id);
+    if (username != null) {
+      update.setParameter("username", username);
+    }
+    if (birthday != null) {
+      update.setParameter("birthday", birthday);
+      update.setParameter("birthdayKey", User.birthdayKeyOf(birthday));
+    }
+    if (expectedVersion != null) {
+      update.setParameter("version", expectedVersion);
+    }
+    return execute(update, Collections.singleton(id), username != null);
+  }
+
+  @Override
+  @Transactional
+  public int backfillBirthdayKeys() {
+    List<Object[]> rows = entityManager.createQuery(
+        "select u.id, u.birthday from User u where u.birthday is not null and u.birthdayKey is null", Object[].class)
+        .getResultList();
+    // there are at most 366 keys -> one UPDATE per key and chunk, not one per user
+    Map<Integer, List<Long>> idsByKey = new HashMap<>();
+    for (Object[] row : rows) {
+      idsByKey.computeIfAbsent(User.birthdayKeyOf((Date) row[1]), key -> new ArrayList<>()).add((Long) row[0]);
+    }
+    int updated = 0;
+    for (Map.Entry<Integer, List<Long>> entry : idsByKey.entrySet()) {
+      List<Long> ids = entry.getValue();
+      for (int start = 0; start < ids.size(); start += UPDATE_CHUNK_SIZE) {
+        List<Long> chunk = ids.subList(start, Math.min(start + UPDATE_CHUNK_SIZE, ids.size()));
+        NativeQuery<?> update = nativeUpdate("update user set birthday_key = :key where id in (:ids)")
+            .setParameter("key", entry.getKey())
+            .setParameterList("ids", chunk);
+        updated += execute(update, chunk, false);
+      }
+    }
+    return updated;
+  }
+
+  private NativeQuery<?> nativeUpdate(String sql) {
+    return entityManager.createNativeQuery(sql).unwrap(NativeQuery.class).addSynchronizedQuerySpace(UNCACHED_QUERY_SPACE);
+  }
+
+  /**
+   * Runs the update and evicts the given users from the second-level cache, once
+   * right away and once more after the commit: a concurrent reader may have put
+   * the old row back in between.
+   *
+   * @param renamed whether usernames changed, then their natural-id mappings go as well
+   */
+  private int execute(NativeQuery<?> update, Collection<Long> ids, boolean renamed) {
+    int updated = update.executeUpdate();
+    if (updated == 0) {
+      return updated;
+    }
+    Cache cache = entityManager.getEntityManagerFactory().unwrap(SessionFactory.class).getCache();
+    Runnable evict = () -> {
+      ids.forEach(id -> cache.evictEntityData(User.class, id));
+      if (renamed) {
+        // the old username is not known here, renames are rare enough to drop all mappings
+        cache.evictNaturalIdData(User.class);
+      }
+    };
+    evict.run();
+    if (TransactionSynchronizationManager.isSynchronizationActive()) {
+      TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+        @Override
+        public void afterCompletion(int status) {
+          evict.run();
+        }
+      });
+    }
+    return updated;
+  }
+}
@@ -0,0 +1,70 @@
+package ch.uzh.ifi.hase.soprafs22.repository;
+
+import ch.uzh.ifi.hase.soprafs22.constant.UserStatus;
+
+import java.util.Date;
+
+/**
+ * The columns of a user that UserGetDTO shows, read by a constructor
+ * expression (see UserRepository.USER_VIEW) instead of as a User entity: the
+ * persistence context keeps no copy of it, nothing is dirty-checked at flush
+ * and the password hash is never read. Immutable apart from the status, which
+ * the service takes from the PresenceTracker like for an entity.
+ */
+public class UserView {
+
+  private final Long id;
+  private final String username;
+  private final Date creation_date;
+  private final String token;
+  private UserStatus status;
+  private final Date birthday;
+  private final Long version;
+
+  public UserView(Long id, String username, Date creation_date, String token, UserStatus status,
+                  Date birthday, Long version) {
+    this.id = id;
+    this.username = username;
+    this.creation_date = creation_date;
+    this.token = token;
+    this.status = status;
+    this.birthday = birthday;
+    this.version = version;
+  }
+
+  public Long getId() {
+    return id;
+  }
+
+  public String getUsername() {
+    return username;
+  }
+
+  public Date getCreation_date() {
+    return creation_date;
+  }
+
+  public String getToken() {
+    return token;
+  }
+
+  public UserStatus getStatus() {
+    return status;
+  }
+
+  public void setStatus(UserStatus status) {
+    this.status = status;
+  }
+
+  public Boolean getLogged_in() {
+    return status.getBool();
+  }
+
+  public Date getBirthday() {
+    return birthday;
+  }
+
+  public Long getVersion() {
+    return version;
+  }
+}
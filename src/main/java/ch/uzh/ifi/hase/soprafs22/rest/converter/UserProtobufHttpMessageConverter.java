@@ -0,0 +1,187 @@
+package ch.uzh.ifi.hase.soprafs22.rest.converter;
+
+import ch.uzh.ifi.hase.soprafs22.rest.dto.UserGetDTO;
+import com.google.protobuf.CodedOutputStream;
+import org.springframework.core.ResolvableType;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractGenericHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Type;
+import java.util.Collection;
+import java.util.Date;
+
+/**
+ * User Protobuf HttpMessageConverter
+ * Writes a UserGetDTO, or a list of them, as Protocol Buffers for clients that
+ * send Accept: application/x-protobuf. The schema is resources/proto/user.proto
+ * (User and UserList); dates are epoch milliseconds and missing values are left
+ * out. The messages are written field by field with CodedOutputStream instead
+ * of going through generated classes, so the DTO stays the only model of a
+ * user and no copy of it is built per response. Only writes, the request
+ * bodies stay JSON.
+ */
+public class UserProtobufHttpMessageConverter extends AbstractGenericHttpMessageConverter<Object> {
+
+  public static final MediaType PROTOBUF = new MediaType("application", "x-protobuf");
+
+  // field numbers of user.proto
+  private static final int USER_LIST_USERS = 1;
+  private static final int USER_ID = 1;
+  private static final int USER_USERNAME = 3;
+  private static final int USER_CREATION_DATE = 4;
+  private static final int USER_TOKEN = 5;
+  private static final int USER_LOGGED_IN = 6;
+  private static final int USER_STATUS = 7;
+  private static final int USER_BIRTHDAY = 8;
+  private static final int USER_VERSION = 9;
+
+  public UserProtobufHttpMessageConverter() {
+    super(PROTOBUF);
+  }
+
+  @Override
+  protected boolean supports(Class<?> clazz) {
+    return UserGetDTO.class.isAssignableFrom(clazz) || Collection.class.isAssignableFrom(clazz);
+  }
+
+  @Override
+  public boolean canRead(Type type, Class<?> contextClass, MediaType mediaType) {
+    return false;
+  }
+
+  @Override
+  public boolean canRead(Class<?> clazz, MediaType mediaType) {
+    return false;
+  }
+
+  @Override
+  public boolean canWrite(Type type, Class<?> clazz, MediaType mediaType) {
+    if (!canWrite(mediaType)) {
+      return false;
+    }
+    ResolvableType resolved = type != null ? ResolvableType.forType(type) : ResolvableType.forClass(clazz);
+    if (UserGetDTO.class.isAssignableFrom(resolved.toClass())) {
+      return true;
+    }
+    // a List<UserGetDTO>; without its element type a collection could hold anything
+    return resolved.asCollection() != ResolvableType.NONE
+        && UserGetDTO.class.isAssignableFrom(resolved.asCollection().getGeneric(0).toClass());
+  }
+
+  @Override
+  public boolean canWrite(Class<?> clazz, MediaType mediaType) {
+    return UserGetDTO.class.isAssignableFrom(clazz) && canWrite(mediaType);
+  }
+
+  @Override
+  protected void writeInternal(Object body, Type type, HttpOutputMessage outputMessage) throws IOException {
+    OutputStream out = outputMessage.getBody();
+    if (body instanceof UserGetDTO) {
+      writeUser((UserGetDTO) body, out);
+    }
+    else {
+      writeUserList((Collection<?>) body, out);
+    }
+  }
+
+  /**
+   * Writes one User message.
+   */
+  public static void writeUser(UserGetDTO user, OutputStream out) throws IOException {
+    CodedOutputStream coded = CodedOutputStream.newInstance(out);
+    writeUserFields(user, coded);
+    coded.flush();
+  }
+
+  /**
+   * Writes one UserList message.
+   */
+  public static void writeUserList(Collection<?> users, OutputStream out) throws IOException {
+    CodedOutputStream coded = CodedOutputStream.newInstance(out);
+    for (Object user : users) {
+      UserGetDTO dto = (UserGetDTO) user;
+      coded.writeTag(USER_LIST_USERS, 2);
+      coded.writeUInt32NoTag(userSize(dto));
+      writeUserFields(dto, coded);
+    }
+    coded.flush();
+  }
+
+  private static void writeUserFields(UserGetDTO user, CodedOutputStream coded) throws IOException {
+    if (user.getId() != null) {
+      coded.writeInt64(USER_ID, user.getId());
+    }
+    if (user.getUsername() != null) {
+      coded.writeString(USER_USERNAME, user.getUsername());
+    }
+    if (user.getCreation_date() != null) {
+      coded.writeInt64(USER_CREATION_DATE, user.getCreation_date().getTime());
+    }
+    if (user.getToken() != null) {
+      coded.writeString(USER_TOKEN, user.getToken());
+    }
+    if (user.getStatus() != null) {
+      // proto3 leaves out false and the zero enum value
+      if (user.getLogged_in()) {
+        coded.writeBool(USER_LOGGED_IN, true);
+      }
+      coded.writeEnum(USER_STATUS, statusNumber(user));
+    }
+    if (user.getBirthday() != null) {
+      coded.writeInt64(USER_BIRTHDAY, user.getBirthday().getTime());
+    }
+    if (user.getVersion() != null) {
+      coded.writeInt64(USER_VERSION, user.getVersion());
+    }
+  }
+
+  // the same fields as writeUserFields, the length prefix of a User inside a UserList
+  private static int userSize(UserGetDTO user) {
+    int size = 0;
+    if (user.getId() != null) {
+      size += CodedOutputStream.computeInt64Size(USER_ID, user.getId());
+    }
+    if (user.getUsername() != null) {
+      size += CodedOutputStream.computeStringSize(USER_USERNAME, user.getUsername());
+    }
+    size += dateSize(USER_CREATION_DATE, user.getCreation_date());
+    if (user.getToken() != null) {
+      size += CodedOutputStream.computeStringSize(USER_TOKEN, user.getToken());
+    }
+    if (user.getStatus() != null) {
+      if (user.getLogged_in()) {
+        size += CodedOutputStream.computeBoolSize(USER_LOGGED_IN, true);
+      }
+      size += CodedOutputStream.computeEnumSize(USER_STATUS, statusNumber(user));
+    }
+    size += dateSize(USER_BIRTHDAY, user.getBirthday());
+    if (user.getVersion() != null) {
+      size += CodedOutputStream.computeInt64Size(USER_VERSION, user.getVersion());
+    }
+    return size;
+  }
+
+  private static int dateSize(int field, Date date) {
+    return date != null ? CodedOutputStream.computeInt64Size(field, date.getTime()) : 0;
+  }
+
+  // user.proto: USER_STATUS_UNSPECIFIED = 0, then the UserStatus constants in their order
+  private static int statusNumber(UserGetDTO user) {
+    return user.getStatus().ordinal() + 1;
+  }
+
+  @Override
+  public Object read(Type type, Class<?> contextClass, HttpInputMessage inputMessage) {
+    throw new HttpMessageNotReadableException("Protobuf request bodies are not supported", inputMessage);
+  }
+
+  @Override
+  protected Object readInternal(Class<?> clazz, HttpInputMessage inputMessage) {
+    throw new HttpMessageNotReadableException("Protobuf request bodies are not supported", inputMessage);
+  }
+}
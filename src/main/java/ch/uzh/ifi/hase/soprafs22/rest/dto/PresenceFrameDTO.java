@@ -0,0 +1,44 @@
+package ch.uzh.ifi.hase.soprafs22.rest.dto;
+
+import java.util.List;
+
+public class PresenceFrameDTO {
+
+  private long seq;
+
+  private List<Long> online;
+
+  private List<Long> offline;
+
+  public PresenceFrameDTO() {}
+
+  public PresenceFrameDTO(long seq, List<Long> online, List<Long> offline) {
+    this.seq = seq;
+    this.online = online;
+    this.offline = offline;
+  }
+
+  public long getSeq() {
+    return seq;
+  }
+
+  public void setSeq(long seq) {
+    this.seq = seq;
+  }
+
+  public List<Long> getOnline() {
+    return online;
+  }
+
+  public void setOnline(List<Long> online) {
+    this.online = online;
+  }
+
+  public List<Long> getOffline() {
+    return offline;
+  }
+
+  public void setOffline(List<Long> offline) {
+    this.offline = offline;
+  }
+}
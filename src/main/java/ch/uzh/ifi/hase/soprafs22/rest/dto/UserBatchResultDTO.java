@@ -0,0 +1,53 @@
+package ch.uzh.ifi.hase.soprafs22.rest.dto;
+
+public class UserBatchResultDTO {
+
+  private int index;
+
+  private int status;
+
+  private String error;
+
+  private UserGetDTO user;
+
+  public UserBatchResultDTO() {}
+
+  public UserBatchResultDTO(int index, int status, String error, UserGetDTO user) {
+    this.index = index;
+    this.status = status;
+    this.error = error;
+    this.user = user;
+  }
+
+  public int getIndex() {
+    return index;
+  }
+
+  public void setIndex(int index) {
+    this.index = index;
+  }
+
+  public int getStatus() {
+    return status;
+  }
+
+  public void setStatus(int status) {
+    this.status = status;
+  }
+
+  public String getError() {
+    return error;
+  }
+
+  public void setError(String error) {
+    this.error = error;
+  }
+
+  public UserGetDTO getUser() {
+    return user;
+  }
+
+  public void setUser(UserGetDTO user) {
+    this.user = user;
+  }
+}
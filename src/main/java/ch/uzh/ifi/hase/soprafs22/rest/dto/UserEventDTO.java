@@ -0,0 +1,58 @@
+package ch.uzh.ifi.hase.soprafs22.rest.dto;
+
+import ch.uzh.ifi.hase.soprafs22.constant.UserEventType;
+import ch.uzh.ifi.hase.soprafs22.constant.UserStatus;
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.util.Date;
+
+// the fields that did not change are left out of the JSON
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class UserEventDTO {
+
+  private long id;
+  private UserEventType type;
+  private String username;
+  private UserStatus status;
+  private Date birthday;
+
+  public long getId() {
+    return id;
+  }
+
+  public void setId(long id) {
+    this.id = id;
+  }
+
+  public UserEventType getType() {
+    return type;
+  }
+
+  public void setType(UserEventType type) {
+    this.type = type;
+  }
+
+  public String getUsername() {
+    return username;
+  }
+
+  public void setUsername(String username) {
+    this.username = username;
+  }
+
+  public UserStatus getStatus() {
+    return status;
+  }
+
+  public void setStatus(UserStatus status) {
+    this.status = status;
+  }
+
+  public Date getBirthday() {
+    return birthday;
+  }
+
+  public void setBirthday(Date birthday) {
+    this.birthday = birthday;
+  }
+}
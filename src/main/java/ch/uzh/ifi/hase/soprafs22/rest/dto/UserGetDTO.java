@@ -7,13 +7,13 @@ import java.util.Date;
 public class UserGetDTO {
 
   private Long id;
-  private String name;
   private String username;
   private Date creation_date;
   private String token;
   private boolean logged_in;
   private UserStatus status;
   private Date birthday;
+  private Long version;
 
   public Date getCreation_date(){return creation_date;}
   public void setCreation_date(Date date){this.creation_date = date;}
@@ -25,13 +25,6 @@ public class UserGetDTO {
     this.id = id;
   }
 
-  public String getName() {
-    return name;
-  }
-  public void setName(String name) {
-    this.name = name;
-  }
-
   public String getUsername() {
     return username;
   }
@@ -63,4 +56,11 @@ public class UserGetDTO {
   public void setBirthday(Date date) {
         this.birthday = date;
     }
+
+  public Long getVersion() {
+    return version;
+  }
+  public void setVersion(Long version) {
+    this.version = version;
+  }
 }
@@ -1,11 +1,7 @@
 package ch.uzh.ifi.hase.soprafs22.rest.dto;
 
 import ch.uzh.ifi.hase.soprafs22.constant.UserStatus;
-import org.springframework.http.HttpStatus;
-import org.springframework.web.server.ResponseStatusException;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.Date;
 
 public class UserPutDTO {
@@ -15,6 +11,8 @@ public class UserPutDTO {
     private boolean logged_in;
     private UserStatus status;
     private Date birthday;
+    // version the edit is based on, see UserService.updateUser
+    private Long version;
 
     public Date getCreation_date(){return creation_date;}
     public void setCreation_date(Date date){this.creation_date = date;}
@@ -47,4 +45,7 @@ public class UserPutDTO {
     public void setBirthday(Date date) {
         this.birthday = date;
     }
+
+    public Long getVersion() {return version;}
+    public void setVersion(Long version) {this.version = version;}
 }
@@ -0,0 +1,31 @@
+package ch.uzh.ifi.hase.soprafs22.rest.dto;
+
+public class UserSearchResultDTO {
+
+  private long id;
+
+  private String username;
+
+  public UserSearchResultDTO() {}
+
+  public UserSearchResultDTO(long id, String username) {
+    this.id = id;
+    this.username = username;
+  }
+
+  public long getId() {
+    return id;
+  }
+
+  public void setId(long id) {
+    this.id = id;
+  }
+
+  public String getUsername() {
+    return username;
+  }
+
+  public void setUsername(String username) {
+    this.username = username;
+  }
+}
@@ -1,6 +1,7 @@
 package ch.uzh.ifi.hase.soprafs22.rest.mapper;
 
 import ch.uzh.ifi.hase.soprafs22.entity.User;
+import ch.uzh.ifi.hase.soprafs22.repository.UserView;
 import ch.uzh.ifi.hase.soprafs22.rest.dto.UserGetDTO;
 import ch.uzh.ifi.hase.soprafs22.rest.dto.UserPostDTO;
 import ch.uzh.ifi.hase.soprafs22.rest.dto.UserPutDTO;
@@ -29,15 +30,25 @@ public interface DTOMapper {
   User convertUserPostDTOtoEntity(UserPostDTO userPostDTO);
 
   @Mapping(source = "id", target = "id")
-  @Mapping(source = "name", target = "name")
   @Mapping(source = "username", target = "username")
   @Mapping(source = "status", target = "status")
   @Mapping(source = "creation_date", target = "creation_date")
   @Mapping(source = "token", target = "token")
   @Mapping(source = "logged_in", target = "logged_in")
   @Mapping(source = "birthday", target = "birthday")
+  @Mapping(source = "version", target = "version")
   UserGetDTO convertEntityToUserGetDTO(User user);
 
+  @Mapping(source = "id", target = "id")
+  @Mapping(source = "username", target = "username")
+  @Mapping(source = "status", target = "status")
+  @Mapping(source = "creation_date", target = "creation_date")
+  @Mapping(source = "token", target = "token")
+  @Mapping(source = "logged_in", target = "logged_in")
+  @Mapping(source = "birthday", target = "birthday")
+  @Mapping(source = "version", target = "version")
+  UserGetDTO convertViewToUserGetDTO(UserView userView);
+
   @Mapping(source = "id", target = "id")
   @Mapping(source = "username", target = "username")
   @Mapping(source = "status", target = "status") //delete
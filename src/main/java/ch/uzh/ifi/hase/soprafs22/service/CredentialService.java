@@ -0,0 +1,134 @@
+package ch.uzh.ifi.hase.soprafs22.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Credential Service
+ * This class hashes and verifies passwords (bcrypt) on its own bounded pool of
+ * threads, so a burst of logins or registrations can only use that many cores
+ * and never the request threads serving everything else.
+ * When all workers are busy and the queue is full, the request is rejected right
+ * away with 503 instead of piling up. Callers must not hold a database
+ * transaction while they wait for a result.
+ */
+@Service
+public class CredentialService implements DisposableBean {
+
+  private final BCryptPasswordEncoder encoder;
+
+  private final ThreadPoolExecutor executor;
+
+  private final long timeoutMillis;
+
+  private final Timer hashTimer;
+  private final Timer verifyTimer;
+  private final Counter rejected;
+
+  @Autowired
+  public CredentialService(@Value("${credentials.bcrypt-strength:10}") int strength,
+                           @Value("${credentials.threads:0}") int threads,
+                           @Value("${credentials.queue-capacity:64}") int queueCapacity,
+                           @Value("${credentials.timeout-ms:5000}") long timeoutMillis,
+                           MeterRegistry registry) {
+    int poolSize = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    this.encoder = new BCryptPasswordEncoder(strength);
+    this.timeoutMillis = timeoutMillis;
+
+    AtomicInteger threadNumber = new AtomicInteger();
+    this.executor = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(queueCapacity),
+        runnable -> {
+          Thread thread = new Thread(runnable, "credentials-" + threadNumber.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        },
+        new ThreadPoolExecutor.AbortPolicy());
+
+    this.hashTimer = Timer.builder("credentials.bcrypt").tag("operation", "hash")
+        .publishPercentileHistogram().register(registry);
+    this.verifyTimer = Timer.builder("credentials.bcrypt").tag("operation", "verify")
+        .publishPercentileHistogram().register(registry);
+    this.rejected = Counter.builder("credentials.rejected").register(registry);
+    Gauge.builder("credentials.queue.size", executor, e -> e.getQueue().size()).register(registry);
+  }
+
+  public CompletableFuture<String> hashAsync(String rawPassword) {
+    return submit(() -> hashTimer.record(() -> encoder.encode(rawPassword)));
+  }
+
+  public CompletableFuture<Boolean> matchesAsync(String rawPassword, String hash) {
+    if (rawPassword == null || hash == null) {
+      return CompletableFuture.completedFuture(false);
+    }
+    return submit(() -> verifyTimer.record(() -> encoder.matches(rawPassword, hash)));
+  }
+
+  /**
+   * @throws org.springframework.web.server.ResponseStatusException 503 if the hashing pool is saturated
+   */
+  public String hash(String rawPassword) {
+    return await(hashAsync(rawPassword));
+  }
+
+  /**
+   * @throws org.springframework.web.server.ResponseStatusException 503 if the hashing pool is saturated
+   */
+  public boolean matches(String rawPassword, String hash) {
+    return await(matchesAsync(rawPassword, hash));
+  }
+
+  <T> T await(CompletableFuture<T> future) {
+    try {
+      return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+    catch (TimeoutException e) {
+      future.cancel(false);
+      throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Credential check timed out, please retry", e);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Credential check interrupted", e);
+    }
+    catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  private <T> CompletableFuture<T> submit(Supplier<T> task) {
+    try {
+      return CompletableFuture.supplyAsync(task, executor);
+    }
+    catch (RejectedExecutionException e) {
+      rejected.increment();
+      throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Too many logins at once, please retry", e);
+    }
+  }
+
+  @Override
+  public void destroy() {
+    executor.shutdownNow();
+  }
+}
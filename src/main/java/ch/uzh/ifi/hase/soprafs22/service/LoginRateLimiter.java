@@ -0,0 +1,192 @@
+package ch.uzh.ifi.hase.soprafs22.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Login Rate Limiter
+ * This class throttles PUT /users/login before UserService.loginUser() is
+ * called, so a burst of guessed passwords is answered with 429 instead of
+ * turning into database lookups. Every username and every client address has a
+ * token bucket: a login attempt takes one token from both, and the buckets
+ * refill continuously at a configured rate per minute.
+ * The buckets are spread over lock stripes (one HashMap and one lock each) so
+ * concurrent logins rarely wait for each other. A bucket that has refilled
+ * completely is no different from a missing one and is evicted, every
+ * login-limit.sweep-ms and whenever a stripe grows beyond its share of
+ * login-limit.max-buckets. If none of them has refilled, a key without a bucket
+ * is limited: evicting a bucket that still counts attempts would hand its key a
+ * fresh one, and adding one would let a spray of usernames grow the maps
+ * without bound.
+ */
+@Component
+public class LoginRateLimiter {
+
+  private final boolean enabled;
+  private final Limit perUsername;
+  private final Limit perAddress;
+  private final Stripe[] stripes;
+  private final int maxBucketsPerStripe;
+  private final LongSupplier nanoClock;
+
+  private final Counter allowed;
+  private final Counter limited;
+
+  @Autowired
+  public LoginRateLimiter(MeterRegistry registry,
+                          @Value("${login-limit.enabled:true}") boolean enabled,
+                          @Value("${login-limit.username.capacity:5}") int usernameCapacity,
+                          @Value("${login-limit.username.per-minute:5}") int usernamePerMinute,
+                          @Value("${login-limit.address.capacity:50}") int addressCapacity,
+                          @Value("${login-limit.address.per-minute:100}") int addressPerMinute,
+                          @Value("${login-limit.stripes:64}") int stripes,
+                          @Value("${login-limit.max-buckets:100000}") int maxBuckets) {
+    this(registry, enabled, new Limit(usernameCapacity, usernamePerMinute), new Limit(addressCapacity, addressPerMinute),
+        stripes, maxBuckets, System::nanoTime);
+  }
+
+  LoginRateLimiter(MeterRegistry registry, boolean enabled, Limit perUsername, Limit perAddress,
+                   int stripes, int maxBuckets, LongSupplier nanoClock) {
+    this.enabled = enabled;
+    this.perUsername = perUsername;
+    this.perAddress = perAddress;
+    this.stripes = new Stripe[stripes];
+    for (int i = 0; i < stripes; i++) {
+      this.stripes[i] = new Stripe();
+    }
+    this.maxBucketsPerStripe = Math.max(1, maxBuckets / stripes);
+    this.nanoClock = nanoClock;
+    this.allowed = Counter.builder("user.login.attempts").tag("outcome", "allowed").register(registry);
+    this.limited = Counter.builder("user.login.attempts").tag("outcome", "limited").register(registry);
+  }
+
+  /**
+   * Takes a token for the username and one for the client address.
+   *
+   * @throws ResponseStatusException 429 if either bucket is empty
+   */
+  public void checkLogin(String username, String address) {
+    if (!enabled) {
+      return;
+    }
+    // the address first: guessing through many usernames from one client runs into it as well
+    boolean permitted = (address == null || tryAcquire("a:" + address, perAddress))
+        && (username == null || tryAcquire("u:" + username.trim().toLowerCase(Locale.ROOT), perUsername));
+    if (!permitted) {
+      limited.increment();
+      throw new ResponseStatusException(HttpStatus.TOO_MANY_REQUESTS, "Too many login attempts, please try again later");
+    }
+    allowed.increment();
+  }
+
+  private boolean tryAcquire(String key, Limit limit) {
+    Stripe stripe = stripes[Math.floorMod(key.hashCode() * 0x9E3779B9, stripes.length)];
+    long now = nanoClock.getAsLong();
+    synchronized (stripe) {
+      Bucket bucket = stripe.buckets.get(key);
+      if (bucket == null) {
+        if (stripe.buckets.size() >= maxBucketsPerStripe) {
+          stripe.evictFull(now);
+          if (stripe.buckets.size() >= maxBucketsPerStripe) {
+            return false;
+          }
+        }
+        bucket = new Bucket(limit, now);
+        stripe.buckets.put(key, bucket);
+      }
+      return bucket.tryTake(now);
+    }
+  }
+
+  /**
+   * Drops the buckets that have refilled completely.
+   */
+  @Scheduled(fixedDelayString = "${login-limit.sweep-ms:60000}")
+  public void evictIdleBuckets() {
+    for (Stripe stripe : stripes) {
+      long now = nanoClock.getAsLong();
+      synchronized (stripe) {
+        stripe.evictFull(now);
+      }
+    }
+  }
+
+  int bucketCount() {
+    int count = 0;
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        count += stripe.buckets.size();
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Bucket size and refill rate.
+   */
+  static final class Limit {
+    private final double capacity;
+    private final double tokensPerNano;
+
+    Limit(int capacity, int perMinute) {
+      this.capacity = capacity;
+      this.tokensPerNano = perMinute / 60e9;
+    }
+  }
+
+  private static final class Stripe {
+    private final Map<String, Bucket> buckets = new HashMap<>();
+
+    private void evictFull(long now) {
+      for (Iterator<Bucket> it = buckets.values().iterator(); it.hasNext(); ) {
+        if (it.next().isFull(now)) {
+          it.remove();
+        }
+      }
+    }
+  }
+
+  // guarded by the lock of its stripe
+  private static final class Bucket {
+    private final Limit limit;
+    private double tokens;
+    private long refilledAt;
+
+    private Bucket(Limit limit, long now) {
+      this.limit = limit;
+      this.tokens = limit.capacity;
+      this.refilledAt = now;
+    }
+
+    private boolean tryTake(long now) {
+      refill(now);
+      if (tokens < 1) {
+        return false;
+      }
+      tokens--;
+      return true;
+    }
+
+    private boolean isFull(long now) {
+      refill(now);
+      return tokens >= limit.capacity;
+    }
+
+    private void refill(long now) {
+      tokens = Math.min(limit.capacity, tokens + (now - refilledAt) * limit.tokensPerNano);
+      refilledAt = now;
+    }
+  }
+}
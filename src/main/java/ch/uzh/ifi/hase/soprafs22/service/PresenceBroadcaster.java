@@ -0,0 +1,204 @@
+package ch.uzh.ifi.hase.soprafs22.service;
+
+import ch.uzh.ifi.hase.soprafs22.constant.UserStatus;
+import ch.uzh.ifi.hase.soprafs22.rest.dto.PresenceFrameDTO;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.ConcurrentWebSocketSessionDecorator;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Presence Broadcaster
+ * This class pushes the ONLINE/OFFLINE transitions of users to the WebSocket
+ * sessions of /ws/presence. Transitions are collected for one tick
+ * (presence.broadcast-interval-ms, the latest status of a user wins) and sent
+ * as a single frame: {"seq":n,"online":[ids],"offline":[ids]}. The frame is
+ * serialized once per tick and the same message goes to every session, so the
+ * cost of a tick grows with the number of transitions, plus one enqueue per
+ * session.
+ * Every session is wrapped in a ConcurrentWebSocketSessionDecorator with a
+ * bounded send buffer that drops the oldest frames when a client falls behind,
+ * and the sends run on a small pool, so one stuck socket holds up neither the
+ * tick nor the other sessions. A client that sees a gap in seq has missed
+ * frames and reloads GET /users.
+ */
+@Component
+@Profile("!reactive")
+public class PresenceBroadcaster implements DisposableBean {
+
+  private final Logger log = LoggerFactory.getLogger(PresenceBroadcaster.class);
+
+  private final ObjectMapper objectMapper;
+  private final Executor sender;
+  private final int maxSessions;
+  private final int sendTimeLimitMillis;
+  private final int bufferSizeLimit;
+
+  private final Object pendingLock = new Object();
+  private Map<Long, UserStatus> pending = new LinkedHashMap<>();
+  private long seq;
+
+  private final ConcurrentHashMap<String, WebSocketSession> sessions = new ConcurrentHashMap<>();
+
+  private final Counter skipped;
+
+  @Autowired
+  public PresenceBroadcaster(ObjectMapper objectMapper, MeterRegistry registry,
+                             @Value("${presence.ws.max-sessions:10000}") int maxSessions,
+                             @Value("${presence.ws.send-time-limit-ms:5000}") int sendTimeLimitMillis,
+                             @Value("${presence.ws.buffer-size-limit:65536}") int bufferSizeLimit,
+                             @Value("${presence.ws.sender-threads:2}") int senderThreads) {
+    this(objectMapper, registry, maxSessions, sendTimeLimitMillis, bufferSizeLimit, newSender(senderThreads, maxSessions));
+  }
+
+  PresenceBroadcaster(ObjectMapper objectMapper, MeterRegistry registry, int maxSessions,
+                      int sendTimeLimitMillis, int bufferSizeLimit, Executor sender) {
+    this.objectMapper = objectMapper;
+    this.sender = sender;
+    this.maxSessions = maxSessions;
+    this.sendTimeLimitMillis = sendTimeLimitMillis;
+    this.bufferSizeLimit = bufferSizeLimit;
+    this.skipped = Counter.builder("user.presence.ws.skipped").register(registry);
+    Gauge.builder("user.presence.ws.sessions", sessions, Map::size).register(registry);
+  }
+
+  // room for one send per session and tick; beyond that a session misses the frame
+  private static ExecutorService newSender(int threads, int maxSessions) {
+    AtomicInteger threadNumber = new AtomicInteger();
+    return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(maxSessions),
+        runnable -> {
+          Thread thread = new Thread(runnable, "presence-ws-" + threadNumber.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        },
+        new ThreadPoolExecutor.AbortPolicy());
+  }
+
+  /**
+   * Adds a session to the broadcast.
+   *
+   * @return false if presence.ws.max-sessions are connected already
+   */
+  public boolean register(WebSocketSession session) {
+    synchronized (sessions) {
+      if (sessions.size() >= maxSessions) {
+        return false;
+      }
+      sessions.put(session.getId(), new ConcurrentWebSocketSessionDecorator(session, sendTimeLimitMillis, bufferSizeLimit,
+          ConcurrentWebSocketSessionDecorator.OverflowStrategy.DROP));
+    }
+    return true;
+  }
+
+  public void unregister(WebSocketSession session) {
+    sessions.remove(session.getId());
+  }
+
+  public int sessionCount() {
+    return sessions.size();
+  }
+
+  @EventListener
+  public void onUserEvent(UserEvent event) {
+    if (event.getStatus() == null) {
+      return;
+    }
+    synchronized (pendingLock) {
+      pending.put(event.getUserId(), event.getStatus());
+    }
+  }
+
+  /**
+   * Sends the transitions of the last tick to every session, as one shared frame.
+   */
+  @Scheduled(fixedDelayString = "${presence.broadcast-interval-ms:100}")
+  public void broadcast() {
+    Map<Long, UserStatus> transitions;
+    long frameSeq;
+    synchronized (pendingLock) {
+      if (pending.isEmpty()) {
+        return;
+      }
+      transitions = pending;
+      pending = new LinkedHashMap<>();
+      frameSeq = ++seq;
+    }
+    if (sessions.isEmpty()) {
+      return;
+    }
+    List<Long> online = new ArrayList<>();
+    List<Long> offline = new ArrayList<>();
+    transitions.forEach((userId, status) -> (status == UserStatus.ONLINE ? online : offline).add(userId));
+    TextMessage frame;
+    try {
+      frame = new TextMessage(objectMapper.writeValueAsString(new PresenceFrameDTO(frameSeq, online, offline)));
+    }
+    catch (JsonProcessingException e) {
+      throw new UncheckedIOException(e);
+    }
+    for (WebSocketSession session : sessions.values()) {
+      try {
+        sender.execute(() -> send(session, frame));
+      }
+      catch (RejectedExecutionException e) {
+        // every sender is stuck: this session misses the frame and sees the gap in seq
+        skipped.increment();
+      }
+    }
+  }
+
+  private void send(WebSocketSession session, TextMessage frame) {
+    try {
+      // returns right away if another thread is sending to this session, the frame is buffered then
+      session.sendMessage(frame);
+    }
+    catch (IOException | RuntimeException e) {
+      // gone, or slower than the send time limit
+      log.debug("Closing presence session {}: {}", session.getId(), e.toString());
+      unregister(session);
+      try {
+        session.close(CloseStatus.SESSION_NOT_RELIABLE);
+      }
+      catch (IOException ignored) {
+        // closed already
+      }
+    }
+  }
+
+  @Override
+  public void destroy() {
+    if (sender instanceof ExecutorService) {
+      ((ExecutorService) sender).shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,116 @@
+package ch.uzh.ifi.hase.soprafs22.service;
+
+import ch.uzh.ifi.hase.soprafs22.constant.UserStatus;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Presence Tracker
+ * This class is the source of truth for whether a user is ONLINE or OFFLINE.
+ * It keeps the time a user was last seen (login, registration or heartbeat) in
+ * memory; a user counts as ONLINE until expiry has passed without a heartbeat.
+ * Status changes are only collected here, the UserService writes them to the
+ * database periodically and in batches (see drainPendingWrites and requeue).
+ */
+@Component
+public class PresenceTracker {
+
+  private final ConcurrentHashMap<Long, Long> lastSeen = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<Long, UserStatus> pendingWrites = new ConcurrentHashMap<>();
+
+  private final long expiryMillis;
+  private final Clock clock;
+
+  @Autowired
+  public PresenceTracker(@Value("${presence.expiry-seconds:60}") long expirySeconds) {
+    this(expirySeconds * 1000, Clock.systemUTC());
+  }
+
+  PresenceTracker(long expiryMillis, Clock clock) {
+    this.expiryMillis = expiryMillis;
+    this.clock = clock;
+  }
+
+  /**
+   * Marks the user as seen right now.
+   *
+   * @return true if the user was OFFLINE before
+   */
+  public boolean markOnline(long userId) {
+    Long previous = lastSeen.put(userId, clock.millis());
+    boolean cameOnline = previous == null || isExpired(previous);
+    if (cameOnline) {
+      pendingWrites.put(userId, UserStatus.ONLINE);
+    }
+    return cameOnline;
+  }
+
+  /**
+   * @return true if the user was ONLINE before
+   */
+  public boolean markOffline(long userId) {
+    Long previous = lastSeen.remove(userId);
+    pendingWrites.put(userId, UserStatus.OFFLINE);
+    return previous != null && !isExpired(previous);
+  }
+
+  public UserStatus statusOf(long userId) {
+    Long seen = lastSeen.get(userId);
+    return seen == null || isExpired(seen) ? UserStatus.OFFLINE : UserStatus.ONLINE;
+  }
+
+  public int onlineCount() {
+    return lastSeen.size();
+  }
+
+  /**
+   * Drops every user whose heartbeat has expired and queues their OFFLINE write.
+   *
+   * @return the ids of the users that went OFFLINE
+   */
+  public List<Long> expire() {
+    List<Long> expired = new ArrayList<>();
+    lastSeen.forEach((userId, seen) -> {
+      if (isExpired(seen) && lastSeen.remove(userId, seen)) {
+        pendingWrites.put(userId, UserStatus.OFFLINE);
+        expired.add(userId);
+      }
+    });
+    return expired;
+  }
+
+  /**
+   * Hands out the latest status of every user that changed since the last call.
+   * A change that races with the drain stays queued for the next one.
+   */
+  public Map<Long, UserStatus> drainPendingWrites() {
+    Map<Long, UserStatus> drained = new HashMap<>();
+    pendingWrites.forEach((userId, status) -> {
+      if (pendingWrites.remove(userId, status)) {
+        drained.put(userId, status);
+      }
+    });
+    return drained;
+  }
+
+  /**
+   * Puts drained status changes back after their write failed, so the next drain
+   * hands them out again. A user whose status changed again in the meantime keeps
+   * the newer change.
+   */
+  public void requeue(Map<Long, UserStatus> changes) {
+    changes.forEach(pendingWrites::putIfAbsent);
+  }
+
+  private boolean isExpired(long seen) {
+    return clock.millis() - seen >= expiryMillis;
+  }
+}
@@ -0,0 +1,164 @@
+package ch.uzh.ifi.hase.soprafs22.service;
+
+import ch.uzh.ifi.hase.soprafs22.constant.UserStatus;
+import ch.uzh.ifi.hase.soprafs22.entity.User;
+import ch.uzh.ifi.hase.soprafs22.repository.ReactiveUserRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.annotation.Profile;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.Date;
+import java.util.UUID;
+
+/**
+ * Reactive User Service
+ * The non-blocking counterpart of the UserService for the "reactive" profile:
+ * list, find, register, login and logout. Sessions, presence and password
+ * hashing are shared with the blocking side (TokenSessionCache, PresenceTracker,
+ * CredentialService), and the same UserEvents are published, so GET /users/events
+ * sees the changes made here; status changes are still written by
+ * UserService.flushPresence(). Nothing here blocks the calling thread, bcrypt
+ * runs on the CredentialService pool and is awaited as a Mono.
+ */
+@Service
+@Profile("reactive")
+public class ReactiveUserService {
+
+  private final Logger log = LoggerFactory.getLogger(ReactiveUserService.class);
+
+  private final ReactiveUserRepository userRepository;
+
+  private final TokenSessionCache sessionCache;
+
+  private final PresenceTracker presenceTracker;
+
+  private final CredentialService credentialService;
+
+  private final UserChangeCounter changeCounter;
+
+  private final UsernameIndex usernameIndex;
+
+  private final ApplicationEventPublisher eventPublisher;
+
+  private final UserRestoreGate restoreGate;
+
+  public ReactiveUserService(ReactiveUserRepository userRepository, TokenSessionCache sessionCache,
+                             PresenceTracker presenceTracker, CredentialService credentialService,
+                             UserChangeCounter changeCounter, UsernameIndex usernameIndex,
+                             ApplicationEventPublisher eventPublisher, UserRestoreGate restoreGate) {
+    this.userRepository = userRepository;
+    this.sessionCache = sessionCache;
+    this.presenceTracker = presenceTracker;
+    this.credentialService = credentialService;
+    this.changeCounter = changeCounter;
+    this.usernameIndex = usernameIndex;
+    this.eventPublisher = eventPublisher;
+    this.restoreGate = restoreGate;
+  }
+
+  /**
+   * @see UserService#getUsers(long, int)
+   */
+  public Flux<User> getUsers(long after, int limit) {
+    if (limit < 1) {
+      return Flux.error(new ResponseStatusException(HttpStatus.BAD_REQUEST, "limit must be at least 1"));
+    }
+    return userRepository.findByIdGreaterThanOrderByIdAsc(after, Math.min(limit, UserService.MAX_PAGE_SIZE))
+        .map(this::withPresence);
+  }
+
+  public Mono<User> findByID(long userID) {
+    return userRepository.findById(userID)
+        .switchIfEmpty(Mono.error(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "USER DOESN'T EXIST :)")))
+        .map(this::withPresence);
+  }
+
+  public Mono<User> createUser(User newUser) {
+    if (newUser.getName() == null || newUser.getUsername() == null) {
+      return Mono.error(new ResponseStatusException(HttpStatus.BAD_REQUEST, "name and username are required"));
+    }
+    newUser.setToken(UUID.randomUUID().toString());
+    newUser.setStatus(UserStatus.ONLINE);
+    newUser.setCreation_date(new Date());
+
+    return gated(Mono.defer(() -> Mono.fromFuture(credentialService.hashAsync(newUser.getName())))
+        .flatMap(hash -> {
+          newUser.setPassword(hash);
+          newUser.setName(null);
+          return userRepository.insert(newUser);
+        })
+        .onErrorMap(DataIntegrityViolationException.class, e -> UserService.isUsernameConflict(e)
+            ? new ResponseStatusException(HttpStatus.CONFLICT,
+                "The username provided is not unique. Therefore, the user could not be created!")
+            : e)
+        .doOnNext(user -> {
+          sessionCache.put(user.getToken(), user.getId());
+          presenceTracker.markOnline(user.getId());
+          usernameIndex.put(user.getId(), user.getUsername());
+          changeCounter.changed();
+          eventPublisher.publishEvent(UserEvent.created(user));
+          log.debug("Created Information for User: {}", user);
+        }));
+  }
+
+  public Mono<User> loginUser(String username, String pw) {
+    return gated(userRepository.findByUsername(username)
+        .switchIfEmpty(Mono.error(() -> new ResponseStatusException(HttpStatus.BAD_REQUEST, "USERNAME DOESN'T EXIST :)")))
+        .flatMap(user -> Mono.defer(() -> Mono.fromFuture(credentialService.matchesAsync(pw, user.getPassword())))
+            .flatMap(matches -> {
+              if (!matches) {
+                return Mono.error(new ResponseStatusException(HttpStatus.BAD_REQUEST, "WRONG PASSWORD PROVIDED!"));
+              }
+              String oldToken = user.getToken();
+              String newToken = UUID.randomUUID().toString();
+              return userRepository.updateToken(user.getId(), newToken).then(Mono.fromCallable(() -> {
+                user.setToken(newToken);
+                user.setVersion(user.getVersion() + 1);
+                if (presenceTracker.markOnline(user.getId())) {
+                  eventPublisher.publishEvent(UserEvent.statusChanged(user.getId(), UserStatus.ONLINE));
+                }
+                user.setStatus(UserStatus.ONLINE);
+                sessionCache.remove(oldToken);
+                sessionCache.put(newToken, user.getId());
+                changeCounter.changed();
+                return user;
+              }));
+            })));
+  }
+
+  public Mono<Void> logoutUser(String token) {
+    return gated(Mono.defer(() -> {
+          Long userID = sessionCache.get(token);
+          return userID != null ? Mono.just(userID) : userRepository.findIdByToken(token);
+        })
+        .switchIfEmpty(Mono.error(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "TOKEN DOESN'T EXIST :)")))
+        .doOnNext(userID -> {
+          if (presenceTracker.markOffline(userID)) {
+            changeCounter.changed();
+            eventPublisher.publishEvent(UserEvent.statusChanged(userID, UserStatus.OFFLINE));
+          }
+          sessionCache.remove(token);
+        })
+        .then());
+  }
+
+  // through the UserRestoreGate from subscription to termination, which may end on another thread
+  private <T> Mono<T> gated(Mono<T> write) {
+    return Mono.defer(() -> {
+      restoreGate.enter();
+      return write.doFinally(signal -> restoreGate.exit());
+    });
+  }
+
+  private User withPresence(User user) {
+    user.setStatus(presenceTracker.statusOf(user.getId()));
+    return user;
+  }
+}
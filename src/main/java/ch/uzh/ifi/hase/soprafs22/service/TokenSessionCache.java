@@ -0,0 +1,185 @@
+package ch.uzh.ifi.hase.soprafs22.service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Clock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Token Session Cache
+ * This class keeps the token -> user id mapping of the logged in users in memory,
+ * so that a token can be validated without asking the database.
+ * The cache is bounded: an entry expires ttl after it was put, and once more than
+ * maxSize entries are held, the entry that expires first is dropped. Every entry is
+ * also appended to an expiry queue (all entries share the same ttl, so put order is
+ * expiry order); put only ever looks at the head of that queue, so keeping the cache
+ * bounded costs O(1) amortized instead of a scan over all sessions.
+ * A dropped or expired token is not invalid, it only has to be looked up in the database again.
+ */
+@Component
+public class TokenSessionCache {
+
+  private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+  // oldest first; may hold sessions that were replaced or removed since, those are skipped
+  private final ConcurrentLinkedQueue<Session> expiryQueue = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger queued = new AtomicInteger();
+  private final AtomicBoolean compacting = new AtomicBoolean();
+
+  private final int maxSize;
+  private final long ttlMillis;
+  private final Clock clock;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  @Autowired
+  public TokenSessionCache(@Value("${sessions.cache.max-size:10000}") int maxSize,
+                           @Value("${sessions.cache.ttl-seconds:1800}") long ttlSeconds) {
+    this(maxSize, ttlSeconds * 1000, Clock.systemUTC());
+  }
+
+  TokenSessionCache(int maxSize, long ttlMillis, Clock clock) {
+    if (maxSize < 1) {
+      throw new IllegalArgumentException("maxSize must be at least 1");
+    }
+    this.maxSize = maxSize;
+    this.ttlMillis = ttlMillis;
+    this.clock = clock;
+  }
+
+  /**
+   * @return the id of the user the token belongs to, or null if the token is not cached
+   */
+  public Long get(String token) {
+    if (token == null) {
+      misses.increment();
+      return null;
+    }
+    Session session = sessions.get(token);
+    if (session == null) {
+      misses.increment();
+      return null;
+    }
+    if (session.expiresAt <= clock.millis()) {
+      if (sessions.remove(token, session)) {
+        evictions.increment();
+      }
+      misses.increment();
+      return null;
+    }
+    hits.increment();
+    return session.userId;
+  }
+
+  public void put(String token, long userId) {
+    long now = clock.millis();
+    Session session = new Session(token, userId, now + ttlMillis);
+    sessions.put(token, session);
+    expiryQueue.offer(session);
+    queued.incrementAndGet();
+
+    evictExpired(now);
+    // still full -> drop the sessions that expire first until there is room again
+    while (sessions.size() > maxSize) {
+      if (!evictHead()) {
+        break;
+      }
+    }
+    if (queued.get() > 2 * maxSize) {
+      compact();
+    }
+  }
+
+  public void remove(String token) {
+    if (token != null) {
+      sessions.remove(token);
+    }
+  }
+
+  public int size() {
+    return sessions.size();
+  }
+
+  public long getHitCount() {
+    return hits.sum();
+  }
+
+  public long getMissCount() {
+    return misses.sum();
+  }
+
+  public long getEvictionCount() {
+    return evictions.sum();
+  }
+
+  int queuedCount() {
+    return queued.get();
+  }
+
+  private void evictExpired(long now) {
+    Session head;
+    while ((head = expiryQueue.peek()) != null && head.expiresAt <= now) {
+      evictHead();
+    }
+  }
+
+  /**
+   * Takes the oldest session off the expiry queue and drops it from the cache,
+   * unless its token has been put again or removed in the meantime.
+   *
+   * @return false if the queue is empty
+   */
+  private boolean evictHead() {
+    Session oldest = expiryQueue.poll();
+    if (oldest == null) {
+      return false;
+    }
+    queued.decrementAndGet();
+    if (sessions.remove(oldest.token, oldest)) {
+      evictions.increment();
+    }
+    return true;
+  }
+
+  /**
+   * Logouts and repeated logins leave entries in the queue whose session is gone;
+   * once they outnumber the live ones, they are dropped in one pass. That pass only
+   * runs after at least maxSize further puts, so it is O(1) per put amortized.
+   */
+  private void compact() {
+    if (!compacting.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      expiryQueue.removeIf(session -> {
+        boolean stale = sessions.get(session.token) != session;
+        if (stale) {
+          queued.decrementAndGet();
+        }
+        return stale;
+      });
+    }
+    finally {
+      compacting.set(false);
+    }
+  }
+
+  private static final class Session {
+    private final String token;
+    private final long userId;
+    private final long expiresAt;
+
+    private Session(String token, long userId, long expiresAt) {
+      this.token = token;
+      this.userId = userId;
+      this.expiresAt = expiresAt;
+    }
+  }
+}
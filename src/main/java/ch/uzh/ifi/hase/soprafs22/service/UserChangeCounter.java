@@ -0,0 +1,33 @@
+package ch.uzh.ifi.hase.soprafs22.service;
+
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * User Change Counter
+ * This class counts every change that is visible in a list of users: created
+ * users, new tokens, profile edits and users going ONLINE or OFFLINE. Its value
+ * is the ETag of GET /users. It starts at the startup time, so an ETag handed
+ * out before a restart never matches again.
+ * The counter only sees the writes of this instance. That is the whole table:
+ * the database is an embedded H2 (in memory, or a file only one process opens),
+ * and the ONLINE/OFFLINE status in the list comes from this instance's
+ * PresenceTracker. Several instances share neither, every one serves its own
+ * list under its own ETags. If the USER table is ever shared between
+ * instances, the counter has to move into the database, bumped in the
+ * transaction of every write.
+ */
+@Component
+public class UserChangeCounter {
+
+  private final AtomicLong counter = new AtomicLong(System.currentTimeMillis());
+
+  public long current() {
+    return counter.get();
+  }
+
+  public void changed() {
+    counter.incrementAndGet();
+  }
+}
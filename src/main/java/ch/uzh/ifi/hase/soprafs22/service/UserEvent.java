@@ -0,0 +1,61 @@
+package ch.uzh.ifi.hase.soprafs22.service;
+
+import ch.uzh.ifi.hase.soprafs22.constant.UserEventType;
+import ch.uzh.ifi.hase.soprafs22.constant.UserStatus;
+import ch.uzh.ifi.hase.soprafs22.entity.User;
+
+import java.util.Date;
+
+/**
+ * User Event
+ * Published by the UserService whenever a user is created, edits the profile
+ * or goes ONLINE or OFFLINE. Only the fields that changed are set.
+ */
+public class UserEvent {
+
+  private final long userId;
+  private final UserEventType type;
+  private final String username;
+  private final UserStatus status;
+  private final Date birthday;
+
+  private UserEvent(long userId, UserEventType type, String username, UserStatus status, Date birthday) {
+    this.userId = userId;
+    this.type = type;
+    this.username = username;
+    this.status = status;
+    this.birthday = birthday;
+  }
+
+  public static UserEvent created(User user) {
+    return new UserEvent(user.getId(), UserEventType.CREATED, user.getUsername(), UserStatus.ONLINE, user.getBirthday());
+  }
+
+  public static UserEvent profileChanged(long userId, String username, Date birthday) {
+    return new UserEvent(userId, UserEventType.PROFILE, username, null, birthday);
+  }
+
+  public static UserEvent statusChanged(long userId, UserStatus status) {
+    return new UserEvent(userId, UserEventType.STATUS, null, status, null);
+  }
+
+  public long getUserId() {
+    return userId;
+  }
+
+  public UserEventType getType() {
+    return type;
+  }
+
+  public String getUsername() {
+    return username;
+  }
+
+  public UserStatus getStatus() {
+    return status;
+  }
+
+  public Date getBirthday() {
+    return birthday;
+  }
+}
@@ -0,0 +1,363 @@
+package ch.uzh.ifi.hase.soprafs22.service;
+
+import ch.uzh.ifi.hase.soprafs22.rest.dto.UserEventDTO;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Clock;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * User Event Hub
+ * This class fans the UserEvents out to the subscribers of GET /users/events.
+ * Events are coalesced per user for events.coalesce-ms: a user who logs in and
+ * edits the profile within that window is a single delta with the latest
+ * values. Every window ends with one batch, serialized once and shared by all
+ * subscribers.
+ * Each subscriber has a buffer of events.subscriber-buffer batches that a small
+ * pool of sender threads writes out. A subscriber that does not keep up loses
+ * its oldest batches, and the next batch it gets is preceded by a "resync"
+ * event (reload GET /users).
+ * A write to a client that stopped reading blocks its sender thread until the
+ * server's write timeout. Once a write has taken events.send-time-limit-ms, the
+ * subscriber is dropped and the pool gets a replacement thread until that write
+ * returns, so the other subscribers keep getting their batches; the connection
+ * itself is closed when the write fails.
+ */
+@Component
+public class UserEventHub implements DisposableBean {
+
+  public static final String BATCH_EVENT = "users";
+  public static final String RESYNC_EVENT = "resync";
+
+  private final Logger log = LoggerFactory.getLogger(UserEventHub.class);
+
+  /**
+   * Writes one event to a subscriber, e.g. to its SSE stream.
+   */
+  @FunctionalInterface
+  public interface Sink {
+    void send(long id, String name, String json) throws IOException;
+  }
+
+  private final ObjectMapper objectMapper;
+  private final Executor sender;
+  private final int bufferSize;
+  private final int maxSubscribers;
+
+  private final Object pendingLock = new Object();
+  private Map<Long, UserEventDTO> pending = new LinkedHashMap<>();
+  private long batchId;
+
+  private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+
+  private final Counter dropped;
+  private final Counter stalled;
+
+  private final long sendTimeLimitMillis;
+  private final Clock clock;
+
+  @Autowired
+  public UserEventHub(ObjectMapper objectMapper, MeterRegistry registry,
+                      @Value("${events.subscriber-buffer:64}") int bufferSize,
+                      @Value("${events.max-subscribers:1000}") int maxSubscribers,
+                      @Value("${events.sender-threads:2}") int senderThreads,
+                      @Value("${events.send-time-limit-ms:5000}") long sendTimeLimitMillis) {
+    this(objectMapper, registry, bufferSize, maxSubscribers, newSender(senderThreads, maxSubscribers),
+        sendTimeLimitMillis, Clock.systemUTC());
+  }
+
+  UserEventHub(ObjectMapper objectMapper, MeterRegistry registry, int bufferSize, int maxSubscribers, Executor sender,
+               long sendTimeLimitMillis, Clock clock) {
+    this.objectMapper = objectMapper;
+    this.sender = sender;
+    this.bufferSize = bufferSize;
+    this.maxSubscribers = maxSubscribers;
+    this.sendTimeLimitMillis = sendTimeLimitMillis;
+    this.clock = clock;
+    this.dropped = Counter.builder("user.events.dropped").register(registry);
+    this.stalled = Counter.builder("user.events.stalled").register(registry);
+    Gauge.builder("user.events.subscribers", subscriptions, List::size).register(registry);
+  }
+
+  // one queued drain per subscriber at most, so the queue never needs to be larger than that
+  private static ExecutorService newSender(int threads, int maxSubscribers) {
+    AtomicInteger threadNumber = new AtomicInteger();
+    return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(maxSubscribers),
+        runnable -> {
+          Thread thread = new Thread(runnable, "user-events-" + threadNumber.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        },
+        new ThreadPoolExecutor.AbortPolicy());
+  }
+
+  /**
+   * @throws ResponseStatusException 503 if events.max-subscribers are subscribed already
+   */
+  public Subscription subscribe(Sink sink) {
+    Subscription subscription = new Subscription(sink);
+    synchronized (subscriptions) {
+      if (subscriptions.size() >= maxSubscribers) {
+        throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Too many event subscribers, please poll GET /users");
+      }
+      subscriptions.add(subscription);
+    }
+    return subscription;
+  }
+
+  public int subscriberCount() {
+    return subscriptions.size();
+  }
+
+  @EventListener
+  public void onUserEvent(UserEvent event) {
+    synchronized (pendingLock) {
+      UserEventDTO delta = pending.computeIfAbsent(event.getUserId(), id -> {
+        UserEventDTO created = new UserEventDTO();
+        created.setId(id);
+        created.setType(event.getType());
+        return created;
+      });
+      // CREATED says the most about a user, then PROFILE, then STATUS
+      if (event.getType().compareTo(delta.getType()) < 0) {
+        delta.setType(event.getType());
+      }
+      if (event.getUsername() != null) {
+        delta.setUsername(event.getUsername());
+      }
+      if (event.getStatus() != null) {
+        delta.setStatus(event.getStatus());
+      }
+      if (event.getBirthday() != null) {
+        delta.setBirthday(event.getBirthday());
+      }
+    }
+  }
+
+  /**
+   * Ends the current window: the coalesced deltas go out as one batch.
+   */
+  @Scheduled(fixedDelayString = "${events.coalesce-ms:250}")
+  public void flush() {
+    Map<Long, UserEventDTO> deltas;
+    long id;
+    synchronized (pendingLock) {
+      if (pending.isEmpty()) {
+        return;
+      }
+      deltas = pending;
+      pending = new LinkedHashMap<>();
+      id = ++batchId;
+    }
+    if (subscriptions.isEmpty()) {
+      return;
+    }
+    String json;
+    try {
+      json = objectMapper.writeValueAsString(new ArrayList<>(deltas.values()));
+    }
+    catch (JsonProcessingException e) {
+      throw new UncheckedIOException(e);
+    }
+    for (Subscription subscription : subscriptions) {
+      subscription.offer(new Batch(id, json));
+    }
+  }
+
+  /**
+   * Drops every subscriber whose current write has taken longer than
+   * events.send-time-limit-ms, and lets the sender pool replace the thread that
+   * is stuck in it.
+   */
+  @Scheduled(fixedDelayString = "${events.coalesce-ms:250}")
+  public void abortStalledSends() {
+    long now = clock.millis();
+    for (Subscription subscription : subscriptions) {
+      if (subscription.markStalled(now)) {
+        stalled.increment();
+        log.debug("Dropping event subscriber, its write is stuck for {} ms", sendTimeLimitMillis);
+        subscription.cancel();
+      }
+    }
+  }
+
+  // a stuck write holds its sender thread -> one more thread for as long as it does
+  private void resizeSender(int delta) {
+    if (!(sender instanceof ThreadPoolExecutor)) {
+      return;
+    }
+    ThreadPoolExecutor pool = (ThreadPoolExecutor) sender;
+    synchronized (pool) {
+      if (delta > 0) {
+        pool.setMaximumPoolSize(pool.getMaximumPoolSize() + delta);
+        pool.setCorePoolSize(pool.getCorePoolSize() + delta);
+      }
+      else {
+        pool.setCorePoolSize(pool.getCorePoolSize() + delta);
+        pool.setMaximumPoolSize(pool.getMaximumPoolSize() + delta);
+      }
+    }
+  }
+
+  @Override
+  public void destroy() {
+    if (sender instanceof ExecutorService) {
+      ((ExecutorService) sender).shutdownNow();
+    }
+  }
+
+  private static final class Batch {
+    private final long id;
+    private final String json;
+
+    private Batch(long id, String json) {
+      this.id = id;
+      this.json = json;
+    }
+  }
+
+  /**
+   * One subscriber: its buffer of batches and whether a sender thread is on it.
+   */
+  public final class Subscription {
+    private final Sink sink;
+    private final ArrayDeque<Batch> buffer = new ArrayDeque<>();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private boolean missedBatches;
+    private volatile boolean cancelled;
+    // guarded by this: when the running write started (0 = none), and whether it was written off
+    private long sendingSince;
+    private boolean stalled;
+
+    private Subscription(Sink sink) {
+      this.sink = sink;
+    }
+
+    public void cancel() {
+      cancelled = true;
+      subscriptions.remove(this);
+    }
+
+    private void offer(Batch batch) {
+      synchronized (buffer) {
+        if (buffer.size() == bufferSize) {
+          buffer.poll();
+          missedBatches = true;
+          dropped.increment();
+        }
+        buffer.add(batch);
+      }
+      scheduleDrain();
+    }
+
+    private void scheduleDrain() {
+      if (cancelled || !draining.compareAndSet(false, true)) {
+        return;
+      }
+      try {
+        sender.execute(this::drain);
+      }
+      catch (RejectedExecutionException e) {
+        // shutting down, or every subscriber is waiting: the next flush tries again
+        draining.set(false);
+      }
+    }
+
+    private void send(long id, String name, String json) throws IOException {
+      synchronized (this) {
+        sendingSince = clock.millis();
+      }
+      try {
+        sink.send(id, name, json);
+      }
+      finally {
+        synchronized (this) {
+          sendingSince = 0;
+          if (stalled) {
+            stalled = false;
+            resizeSender(-1);
+          }
+        }
+      }
+    }
+
+    /**
+     * @return true if the running write has taken events.send-time-limit-ms; the
+     * pool gets its replacement thread right away
+     */
+    private synchronized boolean markStalled(long now) {
+      if (sendingSince == 0 || stalled || now - sendingSince < sendTimeLimitMillis) {
+        return false;
+      }
+      stalled = true;
+      resizeSender(1);
+      return true;
+    }
+
+    private void drain() {
+      try {
+        while (!cancelled) {
+          Batch batch;
+          boolean resync;
+          synchronized (buffer) {
+            batch = buffer.poll();
+            resync = missedBatches && batch != null;
+            missedBatches = missedBatches && !resync;
+          }
+          if (batch == null) {
+            break;
+          }
+          if (resync) {
+            send(batch.id, RESYNC_EVENT, "{}");
+          }
+          send(batch.id, BATCH_EVENT, batch.json);
+        }
+      }
+      catch (IOException | RuntimeException e) {
+        // the client is gone
+        log.debug("Dropping event subscriber: {}", e.toString());
+        cancel();
+      }
+      finally {
+        draining.set(false);
+      }
+      // a batch may have arrived after the last poll, while draining was still set
+      synchronized (buffer) {
+        if (buffer.isEmpty()) {
+          return;
+        }
+      }
+      scheduleDrain();
+    }
+  }
+}
@@ -0,0 +1,66 @@
+package ch.uzh.ifi.hase.soprafs22.service;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+
+/**
+ * User Restore Gate
+ * Keeps the requests that write users or their sessions (registrations,
+ * batches, logins, logouts, heartbeats and profile edits) apart from a snapshot
+ * restore: the restore drops the unique constraints of the USER table and moves
+ * the id sequence, so nobody else may write to it meanwhile. While a restore runs these writes are answered with
+ * 503, and a restore only starts once the ones in progress are done.
+ */
+@Component
+public class UserRestoreGate {
+
+  private boolean restoring;
+
+  private int active;
+
+  /**
+   * Lets a write in; every successful enter() is followed by one exit().
+   *
+   * @throws ResponseStatusException 503 while a snapshot is restored
+   */
+  public synchronized void enter() {
+    if (restoring) {
+      throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "A user snapshot is being restored, please retry");
+    }
+    active++;
+  }
+
+  public synchronized void exit() {
+    if (--active == 0) {
+      notifyAll();
+    }
+  }
+
+  /**
+   * Closes the gate and waits for the writes in progress.
+   *
+   * @throws ResponseStatusException 409 if a restore runs already, 503 if
+   *                                 interrupted while waiting
+   */
+  synchronized void beginRestore() {
+    if (restoring) {
+      throw new ResponseStatusException(HttpStatus.CONFLICT, "A user snapshot is being restored already");
+    }
+    restoring = true;
+    try {
+      while (active > 0) {
+        wait();
+      }
+    }
+    catch (InterruptedException e) {
+      restoring = false;
+      Thread.currentThread().interrupt();
+      throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Interrupted while waiting for the writes in progress", e);
+    }
+  }
+
+  synchronized void endRestore() {
+    restoring = false;
+  }
+}
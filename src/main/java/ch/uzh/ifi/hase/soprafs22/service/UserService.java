@@ -3,24 +3,49 @@ package ch.uzh.ifi.hase.soprafs22.service;
 import ch.uzh.ifi.hase.soprafs22.constant.UserStatus;
 import ch.uzh.ifi.hase.soprafs22.entity.User;
 import ch.uzh.ifi.hase.soprafs22.repository.UserRepository;
-import ch.uzh.ifi.hase.soprafs22.rest.dto.UserGetDTO;
+import ch.uzh.ifi.hase.soprafs22.repository.UserView;
+import ch.uzh.ifi.hase.soprafs22.rest.dto.UserBatchResultDTO;
 import ch.uzh.ifi.hase.soprafs22.rest.dto.UserPutDTO;
+import ch.uzh.ifi.hase.soprafs22.rest.dto.UserSearchResultDTO;
 import ch.uzh.ifi.hase.soprafs22.rest.mapper.DTOMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.web.server.ResponseStatusException;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Objects;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 /**
  * User Service
@@ -33,97 +58,481 @@ import java.util.UUID;
 @Transactional
 public class UserService {
 
+  public static final int DEFAULT_PAGE_SIZE = 20;
+  public static final int MAX_PAGE_SIZE = 100;
+  public static final int MAX_BATCH_SIZE = 1000;
+  public static final int DEFAULT_SEARCH_LIMIT = 10;
+  public static final int MAX_SEARCH_LIMIT = 50;
+  public static final int MAX_BIRTHDAY_DAYS = 366;
+  // keep in line with spring.jpa.properties.hibernate.jdbc.batch_size
+  public static final int BATCH_CHUNK_SIZE = 50;
+
   private final Logger log = LoggerFactory.getLogger(UserService.class);
 
   private final UserRepository userRepository;
 
+  private final TokenSessionCache sessionCache;
+
+  private final PresenceTracker presenceTracker;
+
+  private final CredentialService credentialService;
+
+  private final UserChangeCounter changeCounter;
+
+  private final UsernameIndex usernameIndex;
+
+  private final ApplicationEventPublisher eventPublisher;
+
+  private final TransactionTemplate transactionTemplate;
+
+  private final UserRestoreGate restoreGate;
+
+  @PersistenceContext
+  private EntityManager entityManager;
+
   @Autowired
-  public UserService(@Qualifier("userRepository") UserRepository userRepository) {
+  public UserService(@Qualifier("userRepository") UserRepository userRepository, TokenSessionCache sessionCache,
+                     PresenceTracker presenceTracker, CredentialService credentialService,
+                     UserChangeCounter changeCounter, UsernameIndex usernameIndex,
+                     ApplicationEventPublisher eventPublisher, PlatformTransactionManager transactionManager,
+                     UserRestoreGate restoreGate) {
     this.userRepository = userRepository;
+    this.sessionCache = sessionCache;
+    this.presenceTracker = presenceTracker;
+    this.credentialService = credentialService;
+    this.changeCounter = changeCounter;
+    this.usernameIndex = usernameIndex;
+    this.eventPublisher = eventPublisher;
+    this.transactionTemplate = new TransactionTemplate(transactionManager);
+    this.restoreGate = restoreGate;
   }
 
-  public List<User> getUsers() {
-    return this.userRepository.findAll();
+  /**
+   * Returns one page of users ordered by id, starting after the given cursor.
+   * The page size is capped at MAX_PAGE_SIZE so a single request can never load
+   * the whole table. Only the columns of UserGetDTO are read, as UserViews.
+   *
+   * @param after id of the last user of the previous page (0 for the first page)
+   * @param limit requested page size
+   * @throws org.springframework.web.server.ResponseStatusException
+   */
+  @Transactional(readOnly = true)
+  public List<UserView> getUsers(long after, int limit) {
+      if (limit < 1){
+          throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "limit must be at least 1");
+      }
+      int pageSize = Math.min(limit, MAX_PAGE_SIZE);
+      List<UserView> users = this.userRepository.findByIdGreaterThanOrderByIdAsc(after, PageRequest.of(0, pageSize));
+      users.forEach(user -> user.setStatus(presenceTracker.statusOf(user.getId())));
+      return users;
   }
 
-  public User createUser(User newUser) {
-    newUser.setToken(UUID.randomUUID().toString());
-    //.setLogged_in(true);
-    newUser.setStatus(UserStatus.ONLINE);
+  /**
+   * Returns one page of the users whose birthday is within the next days days,
+   * today (UTC) included, in the order the birthdays come up. A window across
+   * New Year is read as two ranges of birthday_key: the rest of this year, then
+   * the start of the next one. In a common year users born on February 29 have
+   * their birthday on February 28: a window that ends on that day includes them.
+   *
+   * @param after cursor of the last user of the previous page (see birthdayCursorOf), null for the first page
+   * @throws org.springframework.web.server.ResponseStatusException 400 for days outside 1..MAX_BIRTHDAY_DAYS,
+   * a limit below 1 or a malformed cursor
+   */
+  public List<User> getUpcomingBirthdays(int days, String after, int limit) {
+      return getUpcomingBirthdays(LocalDate.now(ZoneOffset.UTC), days, after, limit);
+  }
 
-    /*
-    DateTimeFormatter dtf = DateTimeFormatter.ofPattern("dd-MM-yy HH:mm");
-    LocalDateTime now = LocalDateTime.now();
-    String today = dtf.format(now);
-     */
+  List<User> getUpcomingBirthdays(LocalDate today, int days, String after, int limit) {
+      if (days < 1 || days > MAX_BIRTHDAY_DAYS){
+          throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "days must be between 1 and " + MAX_BIRTHDAY_DAYS);
+      }
+      if (limit < 1){
+          throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "limit must be at least 1");
+      }
+      LocalDate last = today.plusDays(days - 1L);
+      int from = today.getMonthValue() * 100 + today.getDayOfMonth();
+      int to = last.getMonthValue() * 100 + last.getDayOfMonth();
+      if (to == 228 && !last.isLeapYear()) {
+          to = 229;
+      }
+      List<int[]> ranges = new ArrayList<>();
+      if (last.getYear() == today.getYear()) {
+          ranges.add(new int[]{from, to});
+      }
+      else {
+          // the second range stops before today's key, a whole year must not list anyone twice
+          ranges.add(new int[]{from, 1231});
+          ranges.add(new int[]{101, Math.min(to, from - 1)});
+      }
 
-    Date currentTime = new Date();
-    newUser.setCreation_date(currentTime);
+      int afterKey = 0;
+      long afterId = 0;
+      int firstRange = 0;
+      if (after != null) {
+          String[] cursor = after.split("-");
+          try {
+              afterKey = Integer.parseInt(cursor[0]);
+              afterId = Long.parseLong(cursor[1]);
+          }
+          catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+              throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "after is not a cursor of this list");
+          }
+          // the cursor lies in the second range -> the first one is done
+          if (ranges.size() == 2 && afterKey < from) {
+              firstRange = 1;
+          }
+      }
+
+      int pageSize = Math.min(limit, MAX_PAGE_SIZE);
+      List<User> users = new ArrayList<>(pageSize);
+      for (int i = firstRange; i < ranges.size() && users.size() < pageSize; i++) {
+          int[] range = ranges.get(i);
+          users.addAll(userRepository.findBirthdays(range[0], range[1], i == firstRange ? afterKey : 0,
+              i == firstRange ? afterId : 0, PageRequest.of(0, pageSize - users.size())));
+      }
+      users.forEach(this::withPresence);
+      return users;
+  }
 
-    checkIfUserExists(newUser);
+  /**
+   * @return the cursor of getUpcomingBirthdays that continues after this user
+   */
+  public static String birthdayCursorOf(User user) {
+      return user.getBirthdayKey() + "-" + user.getId();
+  }
 
-    // saves the given entity but data is only persisted in the database once
-    // flush() is called
+  /**
+   * Hands every user to the consumer, one at a time and in id order, without ever
+   * holding more than EXPORT_FETCH_SIZE entities in the persistence context.
+   *
+   * @param consumer called once per user; must not keep a reference to the entity
+   */
+  @Transactional(readOnly = true)
+  public void exportUsers(Consumer<User> consumer) {
+      try (Stream<User> users = userRepository.streamAllByOrderByIdAsc()) {
+          int count = 0;
+          Iterator<User> iterator = users.iterator();
+          while (iterator.hasNext()) {
+              consumer.accept(withPresence(iterator.next()));
+              // detach the chunk we already wrote, otherwise the session keeps every row
+              if (++count % UserRepository.EXPORT_FETCH_SIZE == 0) {
+                  entityManager.clear();
+              }
+          }
+      }
+  }
 
-    newUser = userRepository.save(newUser);
-    userRepository.flush();
+  /**
+   * Finds users by username, answered from the UsernameIndex alone: the users
+   * whose username starts with the query first, then similar usernames to
+   * tolerate typos.
+   *
+   * @throws org.springframework.web.server.ResponseStatusException 400 for an empty query or a limit below 1
+   */
+  @Transactional(propagation = Propagation.NOT_SUPPORTED)
+  public List<UserSearchResultDTO> searchUsers(String query, int limit) {
+      if (query == null || query.trim().isEmpty()){
+          throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "q must not be empty");
+      }
+      if (limit < 1){
+          throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "limit must be at least 1");
+      }
+      List<UserSearchResultDTO> results = new ArrayList<>();
+      usernameIndex.search(query, Math.min(limit, MAX_SEARCH_LIMIT))
+          .forEach((id, username) -> results.add(new UserSearchResultDTO(id, username)));
+      return results;
+  }
+
+  /**
+   * Fills the UsernameIndex with the users in the table, once the application
+   * is ready. Users registered or renamed meanwhile are indexed by those
+   * requests and not overwritten here.
+   */
+  @EventListener(ApplicationReadyEvent.class)
+  @Transactional(readOnly = true)
+  public void loadUsernameIndex() {
+      long started = System.nanoTime();
+      try (Stream<Object[]> rows = userRepository.streamUsernames()) {
+          rows.forEach(row -> usernameIndex.load((Long) row[0], (String) row[1]));
+      }
+      log.info("Indexed {} usernames in {} ms", usernameIndex.size(), (System.nanoTime() - started) / 1_000_000);
+  }
+
+  /**
+   * Gives the users stored before the birthday_key column existed their key.
+   */
+  @EventListener(ApplicationReadyEvent.class)
+  public void backfillBirthdayKeys() {
+      int updated = userRepository.backfillBirthdayKeys();
+      if (updated > 0) {
+          log.info("Set the birthday_key of {} users", updated);
+      }
+  }
+
+  /**
+   * Registers a user. The password is hashed on the CredentialService pool first,
+   * without a transaction, so no connection is held while bcrypt runs.
+   *
+   * @throws org.springframework.web.server.ResponseStatusException 400 if the name or the username
+   * is missing, 409 if the username is taken, 503 if the credential pool is saturated or a
+   * snapshot is being restored
+   */
+  @Transactional(propagation = Propagation.NOT_SUPPORTED)
+  public User createUser(User newUser) {
+    restoreGate.enter();
+    try {
+      return register(newUser);
+    }
+    finally {
+      restoreGate.exit();
+    }
+  }
+
+  private User register(User newUser) {
+    if (isBlank(newUser.getUsername()) || isBlank(newUser.getName())) {
+      throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "name and username are required");
+    }
+    prepareNewUser(newUser);
+    newUser.setPassword(credentialService.hash(newUser.getName()));
+    newUser.setName(null);
+
+    // saves the given entity and flushes it in one short transaction. A taken
+    // username is detected by the unique constraint on the insert itself, so
+    // there is no lookup before and no race window.
+    try {
+      newUser = userRepository.saveAndFlush(newUser);
+    }
+    catch (DataIntegrityViolationException e) {
+      if (isUsernameConflict(e)) {
+        throw new ResponseStatusException(HttpStatus.CONFLICT,
+            "The username provided is not unique. Therefore, the user could not be created!");
+      }
+      throw e;
+    }
+    sessionCache.put(newUser.getToken(), newUser.getId());
+    presenceTracker.markOnline(newUser.getId());
+    usernameIndex.put(newUser.getId(), newUser.getUsername());
+    changeCounter.changed();
+    eventPublisher.publishEvent(UserEvent.created(newUser));
 
     log.debug("Created Information for User: {}", newUser);
     return newUser;
   }
 
   /**
-   * This is a helper method that will check the uniqueness criteria of the
-   * username and the name
-   * defined in the User entity. The method will do nothing if the input is unique
-   * and throw an error otherwise.
+   * Registers many users at once. The list is stored in chunks of BATCH_CHUNK_SIZE,
+   * each in its own transaction with a single flush, so Hibernate sends the inserts
+   * as one JDBC batch per chunk. Every input gets its own result: 201 with the
+   * created user, 400 for missing fields, 409 for a taken username or 503 if the
+   * credential pool had no room left for the password hash.
    *
-   * @param userToBeCreated
-   * @throws org.springframework.web.server.ResponseStatusException
-   * @see User
+   * @param newUsers the users to create, at most MAX_BATCH_SIZE
+   * @return one result per input, in input order
+   * @throws org.springframework.web.server.ResponseStatusException 400 if the batch is too large,
+   * 503 while a snapshot is being restored
    */
+  @Transactional(propagation = Propagation.NOT_SUPPORTED)
+  public List<UserBatchResultDTO> createUsers(List<User> newUsers) {
+    restoreGate.enter();
+    try {
+      return registerAll(newUsers);
+    }
+    finally {
+      restoreGate.exit();
+    }
+  }
 
-  private void checkIfUserExists(User userToBeCreated) {
-    User userByUsername = userRepository.findByUsername(userToBeCreated.getUsername());
-    User userByName = userRepository.findByName(userToBeCreated.getName());
+  private List<UserBatchResultDTO> registerAll(List<User> newUsers) {
+    if (newUsers.size() > MAX_BATCH_SIZE) {
+      throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+          String.format("A batch may contain at most %d users", MAX_BATCH_SIZE));
+    }
+    UserBatchResultDTO[] results = new UserBatchResultDTO[newUsers.size()];
+    Set<String> seenUsernames = new HashSet<>();
+
+    for (int start = 0; start < newUsers.size(); start += BATCH_CHUNK_SIZE) {
+      int end = Math.min(start + BATCH_CHUNK_SIZE, newUsers.size());
+
+      // reject invalid entries and duplicates inside the request without touching the database
+      Map<Integer, User> chunk = new LinkedHashMap<>();
+      for (int i = start; i < end; i++) {
+        User newUser = newUsers.get(i);
+        if (isBlank(newUser.getUsername()) || isBlank(newUser.getName())) {
+          results[i] = new UserBatchResultDTO(i, HttpStatus.BAD_REQUEST.value(), "name and username are required", null);
+        }
+        else if (!seenUsernames.add(newUser.getUsername())) {
+          results[i] = new UserBatchResultDTO(i, HttpStatus.CONFLICT.value(), "username is not unique within the batch", null);
+        }
+        else {
+          chunk.put(i, newUser);
+        }
+      }
+      // hash the chunk in parallel, before its transaction starts
+      hashPasswords(chunk, results);
+      if (chunk.isEmpty()) {
+        continue;
+      }
 
-    String baseErrorMessage = "The %s provided %s not unique. Therefore, the user could not be created!";
-    if (userByUsername != null && userByName != null) {
-      throw new ResponseStatusException(HttpStatus.CONFLICT,
-          String.format(baseErrorMessage, "username and the name", "are"));
-    } else if (userByUsername != null) {
-      throw new ResponseStatusException(HttpStatus.CONFLICT, String.format(baseErrorMessage, "username", "is"));
+      List<Integer> created;
+      try {
+        created = transactionTemplate.execute(status -> createChunk(chunk, results));
+      }
+      catch (DataIntegrityViolationException e) {
+        if (!isUsernameConflict(e)) {
+          throw e;
+        }
+        // a concurrent registration took one of the names between check and insert
+        for (int i : chunk.keySet()) {
+          results[i] = new UserBatchResultDTO(i, HttpStatus.CONFLICT.value(),
+              "a username of this chunk was taken concurrently, please retry", null);
+        }
+        continue;
+      }
+      // the chunk is committed -> report the users and cache their sessions
+      for (int i : created) {
+        User newUser = chunk.get(i);
+        results[i] = new UserBatchResultDTO(i, HttpStatus.CREATED.value(), null,
+            DTOMapper.INSTANCE.convertEntityToUserGetDTO(newUser));
+        sessionCache.put(newUser.getToken(), newUser.getId());
+        presenceTracker.markOnline(newUser.getId());
+        usernameIndex.put(newUser.getId(), newUser.getUsername());
+        eventPublisher.publishEvent(UserEvent.created(newUser));
+      }
+      if (!created.isEmpty()) {
+        changeCounter.changed();
+      }
+    }
+    return Arrays.asList(results);
+  }
+
+  private void hashPasswords(Map<Integer, User> chunk, UserBatchResultDTO[] results) {
+    Map<Integer, CompletableFuture<String>> hashes = new LinkedHashMap<>();
+    for (Map.Entry<Integer, User> entry : chunk.entrySet()) {
+      try {
+        hashes.put(entry.getKey(), credentialService.hashAsync(entry.getValue().getName()));
+      }
+      catch (ResponseStatusException e) {
+        // the credential pool is full, this entry can be retried on its own
+        results[entry.getKey()] = new UserBatchResultDTO(entry.getKey(), e.getStatus().value(), e.getReason(), null);
+      }
+    }
+    chunk.keySet().retainAll(hashes.keySet());
+    hashes.forEach((i, hash) -> {
+      User newUser = chunk.get(i);
+      newUser.setPassword(credentialService.await(hash));
+      newUser.setName(null);
+    });
+  }
+
+  private List<Integer> createChunk(Map<Integer, User> chunk, UserBatchResultDTO[] results) {
+    // one query for the whole chunk instead of one lookup per user
+    Set<String> usernames = new HashSet<>();
+    for (User newUser : chunk.values()) {
+      usernames.add(newUser.getUsername());
     }
-    /* COMMENT OUT BECAUSE I'LL TREAT NAME AS THE PASSWORD (RENAMED LATER MAYBE)
-    else if (userByName != null) {
-      throw new ResponseStatusException(HttpStatus.BAD_REQUEST, String.format(baseErrorMessage, "name", "is"));
+    Set<String> taken = new HashSet<>(userRepository.findExistingUsernames(usernames));
+
+    List<Integer> created = new ArrayList<>();
+    for (Map.Entry<Integer, User> entry : chunk.entrySet()) {
+      User newUser = entry.getValue();
+      if (taken.contains(newUser.getUsername())) {
+        results[entry.getKey()] = new UserBatchResultDTO(entry.getKey(), HttpStatus.CONFLICT.value(),
+            "username is not unique", null);
+        continue;
+      }
+      prepareNewUser(newUser);
+      userRepository.save(newUser);
+      created.add(entry.getKey());
     }
 
+    userRepository.flush();
+    // the chunk is written, do not carry its entities into the next one
+    entityManager.clear();
+    return created;
+  }
+
+  private void prepareNewUser(User newUser) {
+    newUser.setToken(UUID.randomUUID().toString());
+    //.setLogged_in(true);
+    newUser.setStatus(UserStatus.ONLINE);
+
+    /*
+    DateTimeFormatter dtf = DateTimeFormatter.ofPattern("dd-MM-yy HH:mm");
+    LocalDateTime now = LocalDateTime.now();
+    String today = dtf.format(now);
      */
+
+    Date currentTime = new Date();
+    newUser.setCreation_date(currentTime);
+  }
+
+  private static boolean isBlank(String value) {
+    return value == null || value.trim().isEmpty();
+  }
+
+  /**
+   * This is a helper method that tells whether a failed insert or update was
+   * caused by the unique constraint on the username of the User entity.
+   *
+   * @param e the exception raised when flushing
+   * @see User#USERNAME_CONSTRAINT
+   */
+  static boolean isUsernameConflict(DataIntegrityViolationException e) {
+    String message = e.getMostSpecificCause().getMessage();
+    return message != null && message.toUpperCase().contains(User.USERNAME_CONSTRAINT);
   }
 
+  /**
+   * Checks the password against the stored bcrypt hash and hands out a new token.
+   * Runs without a surrounding transaction: the lookup and the token write are
+   * two short ones, and the hash is verified on the CredentialService pool in
+   * between, so a login storm neither blocks request threads on bcrypt nor holds
+   * database connections.
+   *
+   * @throws org.springframework.web.server.ResponseStatusException 400 for an unknown user or
+   * a wrong password, 503 if the credential pool is saturated or a snapshot is being restored
+   */
+  @Transactional(propagation = Propagation.NOT_SUPPORTED)
   public User loginUser(String username, String pw){
-      User userByUsername = userRepository.findByUsername(username);
+      restoreGate.enter();
+      try {
+          return login(username, pw);
+      }
+      finally {
+          restoreGate.exit();
+      }
+  }
+
+  private User login(String username, String pw){
+      // in a transaction of its own, otherwise the EntityManager (and its connection)
+      // would stay bound to this method while the hash is checked
+      User userByUsername = transactionTemplate.execute(status -> userRepository.findByUsername(username));
 
       String baseErrorMessage = "USERNAME DOESN'T EXIST :)";
       String wrong = "WRONG PASSWORD PROVIDED!";
       if (userByUsername == null){
           throw new ResponseStatusException(HttpStatus.BAD_REQUEST,baseErrorMessage);
       }
-      userByUsername.setToken(UUID.randomUUID().toString());
       //userByUsername.setLogged_in(true);
 
-
-      String shouldPassword = userByUsername.getName();
-
-      if (shouldPassword.equals(pw)){
-          userByUsername.setStatus(UserStatus.ONLINE);
-          userRepository.flush();
-          return userByUsername;
+      if (!credentialService.matches(pw, userByUsername.getPassword())){
+          throw new ResponseStatusException(HttpStatus.BAD_REQUEST, wrong);
       }
 
-      throw new ResponseStatusException(HttpStatus.BAD_REQUEST, wrong);
-
+      String oldToken = userByUsername.getToken();
+      String newToken = UUID.randomUUID().toString();
+      // the status column is written by flushPresence(), only the new token is written here
+      transactionTemplate.executeWithoutResult(status -> userRepository.updateToken(userByUsername.getId(), newToken));
+      userByUsername.setToken(newToken);
+      userByUsername.setVersion(userByUsername.getVersion() + 1);
+      if (presenceTracker.markOnline(userByUsername.getId())){
+          eventPublisher.publishEvent(UserEvent.statusChanged(userByUsername.getId(), UserStatus.ONLINE));
+      }
+      userByUsername.setStatus(UserStatus.ONLINE);
+      sessionCache.remove(oldToken);
+      sessionCache.put(newToken, userByUsername.getId());
+      changeCounter.changed();
+      return userByUsername;
   }
 
   public User findByID(long userID){
@@ -134,56 +543,250 @@ public class UserService {
       if (userByUserID == null){
           throw new ResponseStatusException(HttpStatus.NOT_FOUND,baseErrorMessage);
       }
-      return userByUserID;
+      return withPresence(userByUserID);
+  }
+
+  /**
+   * The profile of GET /users/{id}: the columns of UserGetDTO as a UserView,
+   * no entity is loaded.
+   *
+   * @throws ResponseStatusException 404 if there is no such user
+   */
+  @Transactional(readOnly = true)
+  public UserView getProfile(long userID){
+      UserView user = userRepository.findViewById(userID);
+      if (user == null){
+          throw new ResponseStatusException(HttpStatus.NOT_FOUND, "USER DOESN'T EXIST :)");
+      }
+      user.setStatus(presenceTracker.statusOf(userID));
+      return user;
   }
 
   public User findByToken(String token){
       String baseErrorMessage = "TOKEN DOESN'T EXIST :)";
-      return userRepository.findByToken(token);
+      Long userID = sessionCache.get(token);
+      if (userID != null){
+          User userByUserID = userRepository.findById(userID.longValue());
+          return userByUserID == null ? null : withPresence(userByUserID);
+      }
+      User userByToken = userRepository.findByToken(token);
+      if (userByToken != null){
+          sessionCache.put(token, userByToken.getId());
+          withPresence(userByToken);
+      }
+      return userByToken;
+
+  }
 
+  /**
+   * Validates a token and returns the id of its user. On the hot path the answer
+   * comes from the session cache; the database is only asked on a cache miss.
+   *
+   * @param token the token handed out by createUser or loginUser
+   * @return the id of the user the token belongs to
+   * @throws org.springframework.web.server.ResponseStatusException 401 if the token is unknown
+   */
+  public long findUserIdByToken(String token){
+      Long userID = sessionCache.get(token);
+      if (userID != null){
+          return userID;
+      }
+      User userByToken = userRepository.findByToken(token);
+      if (userByToken == null){
+          throw new ResponseStatusException(HttpStatus.UNAUTHORIZED, "TOKEN DOESN'T EXIST :)");
+      }
+      sessionCache.put(token, userByToken.getId());
+      return userByToken.getId();
   }
 
+  /**
+   * @throws ResponseStatusException 404 if the token is unknown, 503 while a
+   * snapshot is being restored
+   */
   public void logoutUser(String token){
-      User user = findByToken(token);
-      user.setStatus(UserStatus.OFFLINE);
-      userRepository.flush();
+      restoreGate.enter();
+      try {
+          logout(token);
+      }
+      finally {
+          restoreGate.exit();
+      }
   }
 
-  public UserGetDTO updateUser(UserPutDTO userPutDTO){
-      long idd = userPutDTO.getId();
-      User user = userRepository.findById(idd);
-      if (user == null){
-          throw new ResponseStatusException(HttpStatus.NOT_FOUND);
+  private void logout(String token){
+      long userID;
+      try {
+          userID = findUserIdByToken(token);
       }
-      //User newUser = DTOMapper.INSTANCE.convertUserPutDTOtoEntity(userPutDTO);
-      setBirthday(user, DTOMapper.INSTANCE.convertUserPutDTOtoEntity(userPutDTO));
+      catch (ResponseStatusException e) {
+          throw new ResponseStatusException(HttpStatus.NOT_FOUND, "TOKEN DOESN'T EXIST :)");
+      }
+      if (presenceTracker.markOffline(userID)){
+          changeCounter.changed();
+          eventPublisher.publishEvent(UserEvent.statusChanged(userID, UserStatus.OFFLINE));
+      }
+      sessionCache.remove(token);
+  }
 
-      User sameName = userRepository.findByUsername(userPutDTO.getUsername());
-      if (sameName != null){
-          throw new ResponseStatusException(HttpStatus.CONFLICT, "Username is already taken");
+  /**
+   * Keeps the user of the token ONLINE for another presence.expiry-seconds.
+   * Answered from the session cache and the presence tracker, no database write.
+   *
+   * @throws ResponseStatusException 401 if the token is unknown, 503 while a
+   * snapshot is being restored
+   */
+  public void heartbeat(String token){
+      restoreGate.enter();
+      try {
+          markAlive(token);
       }
-      if (userPutDTO.getUsername() != ""){
-          user.setUsername(userPutDTO.getUsername());
-          userRepository.flush();
+      finally {
+          restoreGate.exit();
       }
-      return DTOMapper.INSTANCE.convertEntityToUserGetDTO(user);
+  }
 
+  private void markAlive(String token){
+      long userID = findUserIdByToken(token);
+      if (presenceTracker.markOnline(userID)){
+          changeCounter.changed();
+          eventPublisher.publishEvent(UserEvent.statusChanged(userID, UserStatus.ONLINE));
+      }
   }
 
+  /**
+   * Expires users whose heartbeat stopped and writes all status changes collected
+   * since the last run to the USER table, with one UPDATE per status and chunk.
+   * If the write fails, the changes stay queued for the next run.
+   */
+  @Scheduled(fixedDelayString = "${presence.flush-interval-ms:5000}")
+  public void flushPresence(){
+      // a user whose heartbeat expired already reads as OFFLINE, the list ETag and the events follow here
+      List<Long> expired = presenceTracker.expire();
+      if (!expired.isEmpty()){
+          changeCounter.changed();
+          expired.forEach(userID -> eventPublisher.publishEvent(UserEvent.statusChanged(userID, UserStatus.OFFLINE)));
+      }
+      Map<Long, UserStatus> changes = presenceTracker.drainPendingWrites();
+      if (changes.isEmpty()){
+          return;
+      }
+      Map<UserStatus, List<Long>> idsByStatus = new EnumMap<>(UserStatus.class);
+      changes.forEach((userID, status) -> idsByStatus.computeIfAbsent(status, s -> new ArrayList<>()).add(userID));
+      try {
+          // all or nothing: a failed flush leaves no chunk written and hands every change back to the tracker
+          transactionTemplate.executeWithoutResult(tx -> idsByStatus.forEach((status, userIDs) -> {
+              for (int start = 0; start < userIDs.size(); start += MAX_BATCH_SIZE) {
+                  userRepository.updateStatus(status, userIDs.subList(start, Math.min(start + MAX_BATCH_SIZE, userIDs.size())));
+              }
+          }));
+      }
+      catch (RuntimeException e) {
+          presenceTracker.requeue(changes);
+          log.warn("Could not flush presence of {} users, retrying with the next run", changes.size(), e);
+          return;
+      }
+      log.debug("Flushed presence of {} users", changes.size());
+  }
 
-  public void setBirthday(User og, User update){
-       /*
-      String date = userPutDTO.getBirthday();
-      if (date != null){
-          Date bDay = new SimpleDateFormat("dd.MM.yyyy").parse(date);
-          user.setBirthday(bDay);
-          userRepository.flush();
+  /**
+   * ETag value of GET /users: changes whenever a user is created or edited, logs
+   * in or goes ONLINE or OFFLINE on this instance (see UserChangeCounter).
+   */
+  public String getUsersETag(){
+      return Long.toString(changeCounter.current());
+  }
+
+  /**
+   * ETag value of GET /users/{id}, built from the version column and the presence
+   * of the user. Costs one indexed lookup of a single column, no entity is loaded.
+   *
+   * @return null if there is no such user
+   */
+  @Transactional(readOnly = true)
+  public String getUserETag(long userID){
+      Long version = userRepository.findVersionById(userID);
+      return version == null ? null : version + "-" + presenceTracker.statusOf(userID);
+  }
+
+  /**
+   * Runs the action once the surrounding transaction has committed, e.g. bumps
+   * the change counter, so a client can never cache the old state under the new
+   * ETag.
+   */
+  private static void afterCommit(Runnable action){
+      if (!TransactionSynchronizationManager.isSynchronizationActive()){
+          action.run();
+          return;
+      }
+      TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+          @Override
+          public void afterCommit() {
+              action.run();
+          }
+      });
+  }
+
+  /**
+   * The status column is only written in batches by flushPresence(), so the live
+   * status always comes from the presence tracker. Setting it on the entity does
+   * not cause a write, the column is not updatable.
+   */
+  private User withPresence(User user){
+      user.setStatus(presenceTracker.statusOf(user.getId()));
+      return user;
+  }
+
+  /**
+   * Partial update of a profile: only the username and birthday given in the
+   * DTO are written, in one UPDATE statement that also bumps the version (see
+   * UserRepositoryCustom.updateProfile). Nothing is loaded and no row lock is
+   * held beyond that statement.
+   *
+   * @param expectedVersion the version the edit is based on (If-Match or the
+   *                        version of the DTO); null to skip the check
+   * @throws ResponseStatusException 404 if there is no such user, 409 if the
+   *                                 user changed since expectedVersion or the
+   *                                 username is taken, 503 while a snapshot is
+   *                                 being restored
+   */
+  @Transactional(propagation = Propagation.NOT_SUPPORTED)
+  public void updateUser(long id, UserPutDTO userPutDTO, Long expectedVersion) {
+    // the transaction commits inside the gate, a restore never sees the rename half done
+    restoreGate.enter();
+    try {
+      transactionTemplate.executeWithoutResult(status -> updateProfile(id, userPutDTO, expectedVersion));
+    }
+    finally {
+      restoreGate.exit();
+    }
+  }
+
+  private void updateProfile(long id, UserPutDTO userPutDTO, Long expectedVersion) {
+    String username = userPutDTO.getUsername() == null || userPutDTO.getUsername().isEmpty()
+        ? null : userPutDTO.getUsername();
+    int updated;
+    try {
+      updated = userRepository.updateProfile(id, expectedVersion, username, userPutDTO.getBirthday());
+    }
+    catch (DataIntegrityViolationException e) {
+      if (isUsernameConflict(e)) {
+        throw new ResponseStatusException(HttpStatus.CONFLICT, "Username is already taken");
       }
-         */
-      if (og.getBirthday() != update.getBirthday() && update.getBirthday() != null){
-          og.setBirthday(update.getBirthday());
-          userRepository.flush();
+      throw e;
+    }
+    if (updated == 0) {
+      // no row matched -> find out why, this costs a second query only on failure
+      if (expectedVersion == null || userRepository.findVersionById(id) == null) {
+        throw new ResponseStatusException(HttpStatus.NOT_FOUND, "USER DOESN'T EXIST :)");
       }
+      throw new ResponseStatusException(HttpStatus.CONFLICT,
+          "The user was changed in the meantime, reload it and try again");
+    }
+    if (username != null) {
+      afterCommit(() -> usernameIndex.put(id, username));
+    }
+    afterCommit(changeCounter::changed);
+    afterCommit(() -> eventPublisher.publishEvent(UserEvent.profileChanged(id, username, userPutDTO.getBirthday())));
   }
 
 }
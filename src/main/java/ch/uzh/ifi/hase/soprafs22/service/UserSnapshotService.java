@@ -0,0 +1,411 @@
+package ch.uzh.ifi.hase.soprafs22.service;
+
+import ch.uzh.ifi.hase.soprafs22.constant.UserStatus;
+import ch.uzh.ifi.hase.soprafs22.entity.User;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.http.HttpStatus;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.server.ResponseStatusException;
+
+import javax.persistence.EntityManagerFactory;
+import javax.sql.DataSource;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.LongStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+/**
+ * User Snapshot Service
+ * Exports the USER table into a compact binary snapshot and restores it into
+ * an empty instance, so a fresh node is warmed with plain JDBC batch inserts
+ * instead of replaying every registration (and its bcrypt hash).
+ * The format is a gzipped stream of DataOutput records:
+ * <pre>
+ * int MAGIC, int FORMAT_VERSION
+ * per user: byte 1, long id, UTF username, byte null-mask,
+ *           [UTF token] [UTF password] [long creation_date] [long birthday] [long version]
+ * byte 0, long number of users
+ * </pre>
+ * Format 1 also held the plaintext name after the id; it is still read, the
+ * name is skipped.
+ * The export is a single streaming query, so it sees one consistent state of
+ * the table and can run while the instance serves requests.
+ */
+@Service
+public class UserSnapshotService implements ApplicationRunner {
+
+  static final int MAGIC = 0x55534e50; // "USNP"
+  static final int FORMAT_VERSION = 2;
+  // with the name column, see V3__drop_user_name.sql
+  static final int FORMAT_VERSION_WITH_NAME = 1;
+
+  static final int FETCH_SIZE = 1000;
+  static final int INSERT_BATCH_SIZE = 1000;
+  static final int COMMIT_SIZE = 50_000;
+
+  private static final String COLUMNS = "id, username, token, password, creation_date, birthday, version";
+
+  private static final int HAS_TOKEN = 1;
+  private static final int HAS_PASSWORD = 1 << 1;
+  private static final int HAS_CREATION_DATE = 1 << 2;
+  private static final int HAS_BIRTHDAY = 1 << 3;
+  private static final int HAS_VERSION = 1 << 4;
+
+  private final Logger log = LoggerFactory.getLogger(UserSnapshotService.class);
+
+  private final JdbcTemplate jdbcTemplate;
+
+  private final TransactionTemplate transactionTemplate;
+
+  private final EntityManagerFactory entityManagerFactory;
+
+  private final UserChangeCounter changeCounter;
+
+  private final UsernameIndex usernameIndex;
+
+  private final UserRestoreGate restoreGate;
+
+  private final String restoreFrom;
+
+  public UserSnapshotService(DataSource dataSource, PlatformTransactionManager transactionManager,
+                             EntityManagerFactory entityManagerFactory, UserChangeCounter changeCounter,
+                             UsernameIndex usernameIndex, UserRestoreGate restoreGate,
+                             @Value("${snapshot.restore-from:}") String restoreFrom) {
+    this.jdbcTemplate = new JdbcTemplate(dataSource);
+    this.jdbcTemplate.setFetchSize(FETCH_SIZE);
+    this.transactionTemplate = new TransactionTemplate(transactionManager);
+    this.entityManagerFactory = entityManagerFactory;
+    this.changeCounter = changeCounter;
+    this.usernameIndex = usernameIndex;
+    this.restoreGate = restoreGate;
+    this.restoreFrom = restoreFrom;
+  }
+
+  /**
+   * Restores snapshot.restore-from on startup, if set and the USER table is still empty.
+   */
+  @Override
+  public void run(ApplicationArguments args) throws IOException {
+    if (restoreFrom.isEmpty()) {
+      return;
+    }
+    if (!isEmpty()) {
+      log.info("Users exist already, not restoring {}", restoreFrom);
+      return;
+    }
+    Path snapshot = Paths.get(restoreFrom);
+    try (InputStream in = Files.newInputStream(snapshot)) {
+      restore(in);
+    }
+  }
+
+  /**
+   * Writes a snapshot of all users to out, in one read-only transaction. The
+   * stream is not closed.
+   *
+   * @return the number of users written
+   */
+  public long export(OutputStream out) throws IOException {
+    long started = System.nanoTime();
+    GZIPOutputStream gzip = new GZIPOutputStream(out, 1 << 16);
+    DataOutputStream data = new DataOutputStream(new BufferedOutputStream(gzip, 1 << 16));
+    data.writeInt(MAGIC);
+    data.writeInt(FORMAT_VERSION);
+
+    long[] count = new long[1];
+    try {
+      transactionTemplate.executeWithoutResult(status -> jdbcTemplate.query(
+          "select " + COLUMNS + " from user order by id", (ResultSet rs) -> {
+            try {
+              writeUser(data, rs);
+            }
+            catch (IOException e) {
+              throw new UncheckedIOException(e);
+            }
+            count[0]++;
+          }));
+    }
+    catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+
+    data.writeByte(0);
+    data.writeLong(count[0]);
+    data.flush();
+    gzip.finish();
+    log.info("Exported {} users in {} ms", count[0], (System.nanoTime() - started) / 1_000_000);
+    return count[0];
+  }
+
+  /**
+   * Loads a snapshot into the USER table. Only an empty table is restored: the
+   * id generators keep blocks of ids in memory, which would collide with the
+   * restored ids once users were registered here. The sequence is moved past the
+   * highest restored id. Restored users are OFFLINE, nobody has a heartbeat with
+   * this instance yet.
+   * The UserRestoreGate holds off registrations and logins for the whole
+   * restore: the unique constraints are dropped for the load and added back at
+   * the end, and the rows are committed every COMMIT_SIZE users (one huge
+   * transaction makes H2's MVStore crawl on commit). If the restore fails, the
+   * rows it wrote are deleted again, by id. The UsernameIndex gets the restored
+   * users once they are all in.
+   *
+   * @return the number of users restored
+   * @throws ResponseStatusException 409 if there are users already or another
+   *                                 restore runs, 400 if the stream is not a
+   *                                 complete snapshot
+   */
+  public long restore(InputStream in) throws IOException {
+    long started = System.nanoTime();
+    DataInputStream data;
+    int format;
+    try {
+      data = new DataInputStream(new BufferedInputStream(new GZIPInputStream(in, 1 << 16), 1 << 16));
+      if (data.readInt() != MAGIC) {
+        throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "not a user snapshot of format " + FORMAT_VERSION);
+      }
+      format = data.readInt();
+      if (format != FORMAT_VERSION && format != FORMAT_VERSION_WITH_NAME) {
+        throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "not a user snapshot of format " + FORMAT_VERSION);
+      }
+    }
+    catch (EOFException | ZipException e) {
+      throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "not a user snapshot of format " + FORMAT_VERSION);
+    }
+    restoreGate.beginRestore();
+    long count;
+    try {
+      // checked once the registrations in progress are done, nobody can add a user from here on
+      if (!isEmpty()) {
+        throw new ResponseStatusException(HttpStatus.CONFLICT, "users exist already, a snapshot is only restored into an empty instance");
+      }
+      count = jdbcTemplate.execute((ConnectionCallback<Long>) connection -> {
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        Map<String, String> constraints = dropUniqueConstraints(connection);
+        LongStream.Builder restoredIds = LongStream.builder();
+        try {
+          long inserted = insertUsers(connection, data, format == FORMAT_VERSION_WITH_NAME, restoredIds);
+          addConstraints(connection, constraints);
+          return inserted;
+        }
+        catch (IOException e) {
+          deleteRestored(connection, constraints, restoredIds.build().toArray());
+          throw new UncheckedIOException(e);
+        }
+        catch (RuntimeException | SQLException e) {
+          deleteRestored(connection, constraints, restoredIds.build().toArray());
+          throw e;
+        }
+        finally {
+          connection.setAutoCommit(autoCommit);
+        }
+      });
+      jdbcTemplate.query("select id, username from user", (ResultSet rs) -> {
+        usernameIndex.load(rs.getLong(1), rs.getString(2));
+      });
+    }
+    catch (UncheckedIOException e) {
+      if (e.getCause() instanceof EOFException) {
+        throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "the snapshot is truncated");
+      }
+      throw e.getCause();
+    }
+    finally {
+      restoreGate.endRestore();
+    }
+
+    // the rows were written past Hibernate
+    entityManagerFactory.getCache().evictAll();
+    changeCounter.changed();
+    log.info("Restored {} users in {} ms", count, (System.nanoTime() - started) / 1_000_000);
+    return count;
+  }
+
+  /**
+   * Drops the unique constraints of the USER table: filling the indexes behind
+   * them row by row (random tokens and usernames) is most of the cost of a
+   * restore, building them once at the end is several times faster.
+   *
+   * @return the column list of every dropped constraint, by name
+   */
+  private static Map<String, String> dropUniqueConstraints(Connection connection) throws SQLException {
+    Map<String, String> constraints = new LinkedHashMap<>();
+    try (Statement statement = connection.createStatement()) {
+      try (ResultSet rs = statement.executeQuery("select constraint_name, column_list from information_schema.constraints "
+          + "where table_name = 'USER' and constraint_type = 'UNIQUE'")) {
+        while (rs.next()) {
+          constraints.put(rs.getString(1), rs.getString(2));
+        }
+      }
+      for (String name : constraints.keySet()) {
+        statement.execute("alter table user drop constraint " + name);
+      }
+    }
+    return constraints;
+  }
+
+  private static void addConstraints(Connection connection, Map<String, String> constraints) throws SQLException {
+    try (Statement statement = connection.createStatement()) {
+      for (Map.Entry<String, String> constraint : constraints.entrySet()) {
+        statement.execute("alter table user add constraint if not exists " + constraint.getKey()
+            + " unique (" + constraint.getValue() + ")");
+      }
+    }
+    connection.commit();
+  }
+
+  // the ids of the rolled back rows are in restoredIds as well, deleting them again finds nothing
+  private static void deleteRestored(Connection connection, Map<String, String> constraints, long[] restoredIds)
+      throws SQLException {
+    connection.rollback();
+    try (PreparedStatement delete = connection.prepareStatement("delete from user where id = ?")) {
+      for (int i = 0; i < restoredIds.length; i++) {
+        delete.setLong(1, restoredIds[i]);
+        delete.addBatch();
+        if ((i + 1) % INSERT_BATCH_SIZE == 0) {
+          delete.executeBatch();
+        }
+      }
+      delete.executeBatch();
+    }
+    addConstraints(connection, constraints);
+  }
+
+  private boolean isEmpty() {
+    return jdbcTemplate.queryForList("select id from user limit 1", Long.class).isEmpty();
+  }
+
+  private static long insertUsers(Connection connection, DataInputStream data, boolean withName,
+                                  LongStream.Builder restoredIds) throws SQLException, IOException {
+    long count = 0;
+    long maxId = 0;
+    try (PreparedStatement insert = connection.prepareStatement(
+        "insert into user (" + COLUMNS + ", birthday_key, status, logged_in) values (?, ?, ?, ?, ?, ?, ?, ?, "
+            + UserStatus.OFFLINE.ordinal() + ", false)")) {
+      while (data.readByte() == 1) {
+        long id = data.readLong();
+        insert.setLong(1, id);
+        if (withName) {
+          data.readUTF();
+        }
+        String username = data.readUTF();
+        insert.setString(2, username);
+        int mask = data.readByte();
+        setString(insert, 3, (mask & HAS_TOKEN) != 0 ? data.readUTF() : null);
+        setString(insert, 4, (mask & HAS_PASSWORD) != 0 ? data.readUTF() : null);
+        setTimestamp(insert, 5, (mask & HAS_CREATION_DATE) != 0 ? data.readLong() : null);
+        Long birthday = (mask & HAS_BIRTHDAY) != 0 ? data.readLong() : null;
+        setTimestamp(insert, 6, birthday);
+        insert.setLong(7, (mask & HAS_VERSION) != 0 ? data.readLong() : 0L);
+        // derived from the birthday, not part of the snapshot
+        Integer birthdayKey = birthday != null ? User.birthdayKeyOf(new Date(birthday)) : null;
+        if (birthdayKey == null) {
+          insert.setNull(8, Types.INTEGER);
+        }
+        else {
+          insert.setInt(8, birthdayKey);
+        }
+        insert.addBatch();
+        restoredIds.add(id);
+        maxId = Math.max(maxId, id);
+        if (++count % INSERT_BATCH_SIZE == 0) {
+          insert.executeBatch();
+        }
+        if (count % COMMIT_SIZE == 0) {
+          connection.commit();
+        }
+      }
+      insert.executeBatch();
+    }
+    long expected = data.readLong();
+    if (expected != count) {
+      throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "the snapshot holds " + expected + " users, read " + count);
+    }
+    // the pooled optimizer hands out the ids below a sequence value, see User
+    try (Statement statement = connection.createStatement()) {
+      statement.execute("alter sequence USER_SEQ restart with " + (maxId + User.ID_ALLOCATION_SIZE + 1));
+    }
+    connection.commit();
+    return count;
+  }
+
+  private static void writeUser(DataOutputStream data, ResultSet rs) throws SQLException, IOException {
+    String token = rs.getString("token");
+    String password = rs.getString("password");
+    Timestamp creationDate = rs.getTimestamp("creation_date");
+    Timestamp birthday = rs.getTimestamp("birthday");
+    long version = rs.getLong("version");
+    boolean hasVersion = !rs.wasNull();
+
+    data.writeByte(1);
+    data.writeLong(rs.getLong("id"));
+    data.writeUTF(rs.getString("username"));
+    data.writeByte((token != null ? HAS_TOKEN : 0) | (password != null ? HAS_PASSWORD : 0)
+        | (creationDate != null ? HAS_CREATION_DATE : 0) | (birthday != null ? HAS_BIRTHDAY : 0)
+        | (hasVersion ? HAS_VERSION : 0));
+    if (token != null) {
+      data.writeUTF(token);
+    }
+    if (password != null) {
+      data.writeUTF(password);
+    }
+    if (creationDate != null) {
+      data.writeLong(creationDate.getTime());
+    }
+    if (birthday != null) {
+      data.writeLong(birthday.getTime());
+    }
+    if (hasVersion) {
+      data.writeLong(version);
+    }
+  }
+
+  private static void setString(PreparedStatement statement, int index, String value) throws SQLException {
+    if (value == null) {
+      statement.setNull(index, Types.VARCHAR);
+    }
+    else {
+      statement.setString(index, value);
+    }
+  }
+
+  private static void setTimestamp(PreparedStatement statement, int index, Long millis) throws SQLException {
+    if (millis == null) {
+      statement.setNull(index, Types.TIMESTAMP);
+    }
+    else {
+      statement.setTimestamp(index, new Timestamp(millis));
+    }
+  }
+}
@@ -0,0 +1,245 @@
+package ch.uzh.ifi.hase.soprafs22.service;
+
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongConsumer;
+
+/**
+ * Username Index
+ * This class keeps every username in memory so users can be searched without
+ * asking the database. Usernames are compared case-insensitively.
+ * Prefixes are looked up in a sorted skip list (a range scan, like walking down
+ * a trie, but safe for concurrent readers); typos are tolerated through the
+ * trigrams of the usernames: a user whose username shares enough trigrams with
+ * the query is a match as well. Prefix matches come first, then the fuzzy ones
+ * from the most to the least similar.
+ * The index is filled by UserService.loadUsernameIndex() at startup and kept up
+ * to date by the registrations and renames of this instance.
+ */
+@Component
+public class UsernameIndex {
+
+  // ids read from the postings per query, the rarest trigrams first: common trigrams
+  // say little about a match and would make a query touch a large part of the index
+  static final int MAX_POSTINGS_READ = 5_000;
+  // Jaccard similarity of the trigram sets, below this a username is not a match
+  static final double MIN_SIMILARITY = 0.3;
+  // candidates per requested match whose similarity is computed exactly
+  private static final int CANDIDATES_PER_MATCH = 4;
+
+  private final ConcurrentHashMap<Long, String> usernames = new ConcurrentHashMap<>();
+  // "<lower case username>\0<username>" -> id, so names differing only in case are kept apart
+  private final ConcurrentSkipListMap<String, Long> sorted = new ConcurrentSkipListMap<>();
+  private final ConcurrentHashMap<String, Postings> postings = new ConcurrentHashMap<>();
+
+  /**
+   * Adds the user, or moves it to its new username.
+   */
+  public synchronized void put(long id, String username) {
+    String previous = usernames.put(id, username);
+    if (username.equals(previous)) {
+      return;
+    }
+    if (previous != null) {
+      unindex(id, previous);
+    }
+    index(id, username);
+  }
+
+  /**
+   * Adds the user unless it is indexed already: a bulk load must not undo a
+   * rename that happened while it was reading the table.
+   */
+  public synchronized void load(long id, String username) {
+    if (usernames.putIfAbsent(id, username) == null) {
+      index(id, username);
+    }
+  }
+
+  public int size() {
+    return usernames.size();
+  }
+
+  /**
+   * @return up to limit users (id -> username) whose username starts with the
+   * query, followed by the ones that are similar to it, best match first
+   */
+  public Map<Long, String> search(String query, int limit) {
+    String prefix = normalize(query);
+    Map<Long, String> matches = new LinkedHashMap<>();
+    for (Long id : sorted.subMap(prefix, true, prefix + Character.MAX_VALUE, false).values()) {
+      if (matches.size() == limit) {
+        return matches;
+      }
+      String username = usernames.get(id);
+      if (username != null) {
+        matches.put(id, username);
+      }
+    }
+    if (matches.size() < limit) {
+      fuzzyMatches(prefix, limit, matches);
+    }
+    return matches;
+  }
+
+  private void fuzzyMatches(String query, int limit, Map<Long, String> matches) {
+    // count the trigrams every candidate shares with the query, from the most selective trigrams
+    Set<String> queryTrigrams = trigrams(query);
+    List<Postings> selective = new ArrayList<>();
+    for (String trigram : queryTrigrams) {
+      Postings ids = postings.get(trigram);
+      if (ids != null) {
+        selective.add(ids);
+      }
+    }
+    selective.sort(Comparator.comparingInt(Postings::size));
+    Map<Long, Integer> shared = new HashMap<>();
+    int budget = MAX_POSTINGS_READ;
+    for (Postings ids : selective) {
+      budget -= ids.forEachIfAtMost(budget, id -> shared.merge(id, 1, Integer::sum));
+    }
+    matches.keySet().forEach(shared::remove);
+
+    // the candidates sharing the most trigrams get their exact similarity computed
+    int candidates = (limit - matches.size()) * CANDIDATES_PER_MATCH;
+    PriorityQueue<Map.Entry<Long, Integer>> best = new PriorityQueue<>(Map.Entry.comparingByValue());
+    for (Map.Entry<Long, Integer> entry : shared.entrySet()) {
+      best.add(entry);
+      if (best.size() > candidates) {
+        best.poll();
+      }
+    }
+    List<Match> ranked = new ArrayList<>(best.size());
+    for (Map.Entry<Long, Integer> entry : best) {
+      String username = usernames.get(entry.getKey());
+      if (username == null) {
+        continue;
+      }
+      double similarity = similarity(queryTrigrams, trigrams(normalize(username)));
+      if (similarity >= MIN_SIMILARITY) {
+        ranked.add(new Match(entry.getKey(), username, similarity));
+      }
+    }
+    ranked.sort(Comparator.comparingDouble((Match match) -> -match.similarity).thenComparing(match -> match.username));
+    for (Match match : ranked) {
+      if (matches.size() == limit) {
+        return;
+      }
+      matches.put(match.id, match.username);
+    }
+  }
+
+  private void index(long id, String username) {
+    String normalized = normalize(username);
+    sorted.put(normalized + '\0' + username, id);
+    for (String trigram : trigrams(normalized)) {
+      postings.computeIfAbsent(trigram, t -> new Postings()).add(id);
+    }
+  }
+
+  private void unindex(long id, String username) {
+    String normalized = normalize(username);
+    sorted.remove(normalized + '\0' + username, id);
+    for (String trigram : trigrams(normalized)) {
+      Postings ids = postings.get(trigram);
+      if (ids != null && ids.remove(id)) {
+        postings.remove(trigram);
+      }
+    }
+  }
+
+  private static String normalize(String username) {
+    return username.trim().toLowerCase(Locale.ROOT);
+  }
+
+  // padded, so the start and the end of a username count as well and a short query still has trigrams
+  static Set<String> trigrams(String normalized) {
+    String padded = "  " + normalized + " ";
+    Set<String> trigrams = new LinkedHashSet<>();
+    for (int i = 0; i + 3 <= padded.length(); i++) {
+      trigrams.add(padded.substring(i, i + 3));
+    }
+    return trigrams;
+  }
+
+  private static double similarity(Set<String> a, Set<String> b) {
+    int common = 0;
+    for (String trigram : a) {
+      if (b.contains(trigram)) {
+        common++;
+      }
+    }
+    return (double) common / (a.size() + b.size() - common);
+  }
+
+  /**
+   * The ids of the users with one trigram, as a plain long array: a boxed set
+   * per trigram would cost several times the memory of the usernames themselves.
+   */
+  private static final class Postings {
+    private long[] ids = new long[2];
+    private int size;
+
+    synchronized void add(long id) {
+      if (size == ids.length) {
+        ids = Arrays.copyOf(ids, size * 2);
+      }
+      ids[size++] = id;
+    }
+
+    /**
+     * @return true if no id is left
+     */
+    synchronized boolean remove(long id) {
+      for (int i = 0; i < size; i++) {
+        if (ids[i] == id) {
+          ids[i] = ids[--size];
+          break;
+        }
+      }
+      return size == 0;
+    }
+
+    synchronized int size() {
+      return size;
+    }
+
+    /**
+     * @return the number of ids passed to the consumer, 0 if there are more than maxSize
+     */
+    synchronized int forEachIfAtMost(int maxSize, LongConsumer consumer) {
+      if (size > maxSize) {
+        return 0;
+      }
+      for (int i = 0; i < size; i++) {
+        consumer.accept(ids[i]);
+      }
+      return size;
+    }
+  }
+
+  private static final class Match {
+    private final long id;
+    private final String username;
+    private final double similarity;
+
+    private Match(long id, String username, double similarity) {
+      this.id = id;
+      this.username = username;
+      this.similarity = similarity;
+    }
+  }
+}
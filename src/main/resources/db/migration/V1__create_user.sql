@@ -0,0 +1,26 @@
+-- The USER table as Hibernate generated it from the User entity before the schema
+-- was migrated by Flyway; databases created that way are baselined at this version.
+
+create sequence user_seq start with 1 increment by 50;
+
+create table user (
+  id            bigint       not null,
+  name          varchar(255) not null,
+  username      varchar(255) not null,
+  password      varchar(60),
+  token         varchar(255),
+  logged_in     boolean      not null,
+  status        integer      not null,
+  creation_date timestamp,
+  birthday      timestamp,
+  birthday_key  integer,
+  version       bigint,
+  primary key (id)
+);
+
+-- login, registration conflicts, natural-id lookups (User.USERNAME_CONSTRAINT)
+alter table user add constraint UK_USER_USERNAME unique (username);
+-- token -> user on a session cache miss
+alter table user add constraint UK_USER_TOKEN unique (token);
+-- upcoming birthdays: range scan on birthday_key, keyset-paged on (birthday_key, id)
+create index IX_USER_BIRTHDAY_KEY on user (birthday_key, id);
@@ -0,0 +1,2 @@
+-- UserRepository.findByName runs on every registration; without an index it scans the table
+create index IX_USER_NAME on user (name);
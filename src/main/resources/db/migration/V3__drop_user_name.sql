@@ -0,0 +1,5 @@
+-- findByName is gone, and so is the column it looked up: name is the password the client
+-- registers with; since bcrypt it only exists as the hash in password (see User.name), the
+-- plaintext copy is dropped together with its index
+drop index if exists IX_USER_NAME;
+alter table user drop column name;
@@ -0,0 +1,93 @@
+package ch.uzh.ifi.hase.soprafs22.controller;
+
+import ch.uzh.ifi.hase.soprafs22.constant.UserStatus;
+import ch.uzh.ifi.hase.soprafs22.entity.User;
+import ch.uzh.ifi.hase.soprafs22.rest.dto.UserPostDTO;
+import ch.uzh.ifi.hase.soprafs22.service.LoginRateLimiter;
+import ch.uzh.ifi.hase.soprafs22.service.ReactiveUserService;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.reactive.WebFluxTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import static org.mockito.BDDMockito.given;
+
+/**
+ * ReactiveUserControllerTest
+ * This is a WebFluxTest for the ReactiveUserController ("reactive" profile),
+ * the requests are handled without a server.
+ */
+@WebFluxTest(ReactiveUserController.class)
+@ActiveProfiles("reactive")
+public class ReactiveUserControllerTest {
+
+    @Autowired
+    private WebTestClient webTestClient;
+
+    @MockBean
+    private ReactiveUserService userService;
+
+    @MockBean
+    private LoginRateLimiter loginRateLimiter;
+
+    @Test
+    public void getUsers_fullPage_returnsCursorHeader() {
+        given(userService.getUsers(0L, 2)).willReturn(Flux.just(user(1L, "a"), user(2L, "b")));
+
+        webTestClient.get().uri("/users?limit=2").exchange()
+            .expectStatus().isOk()
+            .expectHeader().valueEquals(UserController.NEXT_CURSOR_HEADER, "2")
+            .expectBody()
+            .jsonPath("$.length()").isEqualTo(2)
+            .jsonPath("$[1].username").isEqualTo("b");
+    }
+
+    @Test
+    public void getUser_unknownId_notFound() {
+        given(userService.findByID(7L)).willReturn(Mono.error(new ResponseStatusException(HttpStatus.NOT_FOUND)));
+
+        webTestClient.get().uri("/users/7").exchange()
+            .expectStatus().isNotFound();
+    }
+
+    @Test
+    public void createUser_validInput_userCreated() {
+        given(userService.createUser(Mockito.any())).willReturn(Mono.just(user(1L, "testUsername")));
+
+        UserPostDTO userPostDTO = new UserPostDTO();
+        userPostDTO.setName("Test User");
+        userPostDTO.setUsername("testUsername");
+
+        webTestClient.post().uri("/users").bodyValue(userPostDTO).exchange()
+            .expectStatus().isCreated()
+            .expectBody()
+            .jsonPath("$.id").isEqualTo(1)
+            .jsonPath("$.status").isEqualTo(UserStatus.ONLINE.toString());
+    }
+
+    @Test
+    public void login_wrongPassword_badRequest() {
+        given(userService.loginUser("testUsername", "wrong"))
+            .willReturn(Mono.error(new ResponseStatusException(HttpStatus.BAD_REQUEST, "WRONG PASSWORD PROVIDED!")));
+
+        webTestClient.put().uri("/users/login?username=testUsername&pw=wrong").exchange()
+            .expectStatus().isBadRequest();
+    }
+
+    private static User user(long id, String username) {
+        User user = new User();
+        user.setId(id);
+        user.setName("Test User");
+        user.setUsername(username);
+        user.setToken("1");
+        user.setStatus(UserStatus.ONLINE);
+        return user;
+    }
+}
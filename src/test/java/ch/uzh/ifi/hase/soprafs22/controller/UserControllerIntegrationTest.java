@@ -0,0 +1,71 @@
+package ch.uzh.ifi.hase.soprafs22.controller;
+
+import ch.uzh.ifi.hase.soprafs22.entity.User;
+import ch.uzh.ifi.hase.soprafs22.repository.UserRepository;
+import ch.uzh.ifi.hase.soprafs22.service.UserService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+
+import java.io.ByteArrayInputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs against the embedded Tomcat, for what MockMvc does not see: the
+ * response compression of the connector.
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+    properties = "credentials.bcrypt-strength=4")
+public class UserControllerIntegrationTest {
+
+  @LocalServerPort
+  private int port;
+
+  @Qualifier("userRepository")
+  @Autowired
+  private UserRepository userRepository;
+
+  @Autowired
+  private UserService userService;
+
+  private final HttpClient client = HttpClient.newHttpClient();
+
+  @BeforeEach
+  public void setup() {
+    userRepository.deleteAll();
+  }
+
+  @Test
+  public void getUsers_largePage_gzipped() throws Exception {
+    List<User> users = new ArrayList<>();
+    for (int i = 0; i < 50; i++) {
+      User user = new User();
+      user.setName("name" + i);
+      user.setUsername("compressed-username-" + i);
+      users.add(user);
+    }
+    userService.createUsers(users);
+
+    HttpResponse<byte[]> response = client.send(HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/users?limit=50"))
+        .header("Accept", "application/json")
+        .header("Accept-Encoding", "gzip")
+        .build(), HttpResponse.BodyHandlers.ofByteArray());
+
+    assertEquals(200, response.statusCode());
+    assertEquals("gzip", response.headers().firstValue("Content-Encoding").orElse(null));
+    assertTrue(response.headers().firstValue("ETag").orElseThrow().startsWith("W/"));
+    String body = new String(new GZIPInputStream(new ByteArrayInputStream(response.body())).readAllBytes());
+    assertTrue(body.contains("compressed-username-49"));
+  }
+}
@@ -2,12 +2,20 @@ package ch.uzh.ifi.hase.soprafs22.controller;
 
 import ch.uzh.ifi.hase.soprafs22.constant.UserStatus;
 import ch.uzh.ifi.hase.soprafs22.entity.User;
+import ch.uzh.ifi.hase.soprafs22.repository.UserView;
+import ch.uzh.ifi.hase.soprafs22.rest.dto.UserBatchResultDTO;
 import ch.uzh.ifi.hase.soprafs22.rest.dto.UserGetDTO;
 import ch.uzh.ifi.hase.soprafs22.rest.dto.UserPostDTO;
 import ch.uzh.ifi.hase.soprafs22.rest.dto.UserPutDTO;
+import ch.uzh.ifi.hase.soprafs22.rest.dto.UserSearchResultDTO;
+import ch.uzh.ifi.hase.soprafs22.service.LoginRateLimiter;
 import ch.uzh.ifi.hase.soprafs22.service.UserService;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.WireFormat;
 import org.junit.jupiter.api.Test;
 import org.mockito.Mockito;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -16,17 +24,29 @@ import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
 import org.springframework.web.server.ResponseStatusException;
 
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Date;
 import java.util.List;
+import java.util.function.Consumer;
 
+import static org.hamcrest.Matchers.hasItem;
 import static org.hamcrest.Matchers.hasSize;
 import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.BDDMockito.given;
+import static org.mockito.BDDMockito.willAnswer;
+import static org.mockito.BDDMockito.willThrow;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 /**
@@ -44,29 +64,138 @@ public class UserControllerTest {
     @MockBean
     private UserService userService;
 
+    @MockBean
+    private LoginRateLimiter loginRateLimiter;
+
     @Test // find all users; OK - given
     public void givenUsers_whenGetUsers_thenReturnJsonArray() throws Exception {
         // given
-        User user = new User();
-        user.setName("Firstname Lastname");
-        user.setUsername("firstname@lastname");
-        user.setStatus(UserStatus.ONLINE);
+        UserView user = view(1L, "firstname@lastname", UserStatus.ONLINE);
 
-        List<User> allUsers = Collections.singletonList(user);
+        List<UserView> allUsers = Collections.singletonList(user);
 
         // this mocks the UserService -> we define above what the userService should
         // return when getUsers() is called
-        given(userService.getUsers()).willReturn(allUsers);
+        given(userService.getUsers(0L, UserService.DEFAULT_PAGE_SIZE)).willReturn(allUsers);
 
         // when
         MockHttpServletRequestBuilder getRequest = get("/users").contentType(MediaType.APPLICATION_JSON);
 
-        // then
+        // then -> page is not full, so there is no next cursor
         mockMvc.perform(getRequest).andExpect(status().isOk())
                 .andExpect(jsonPath("$", hasSize(1)))
-                .andExpect(jsonPath("$[0].name", is(user.getName())))
+                .andExpect(jsonPath("$[0].name").doesNotExist())
                 .andExpect(jsonPath("$[0].username", is(user.getUsername())))
-                .andExpect(jsonPath("$[0].status", is(user.getStatus().toString())));
+                .andExpect(jsonPath("$[0].status", is(user.getStatus().toString())))
+                .andExpect(header().doesNotExist("X-Next-Cursor"));
+    }
+
+    @Test // same page as CBOR: dates as epoch milliseconds
+    public void givenUsers_whenGetUsersAsCbor_thenReturnCborArray() throws Exception {
+        UserView user = new UserView(1L, "firstname@lastname", new Date(1_640_995_200_000L),
+                null, UserStatus.ONLINE, null, 0L);
+        given(userService.getUsers(0L, UserService.DEFAULT_PAGE_SIZE)).willReturn(Collections.singletonList(user));
+
+        MvcResult result = mockMvc.perform(get("/users").accept("application/cbor"))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType("application/cbor"))
+                .andExpect(header().stringValues("Vary", hasItem("Accept")))
+                .andReturn();
+
+        JsonNode users = new CBORMapper().readTree(result.getResponse().getContentAsByteArray());
+        assertEquals(1, users.size());
+        assertEquals("firstname@lastname", users.get(0).get("username").asText());
+        assertEquals(1_640_995_200_000L, users.get(0).get("creation_date").asLong());
+    }
+
+    @Test // same page as protobuf (resources/proto/user.proto, UserList)
+    public void givenUsers_whenGetUsersAsProtobuf_thenReturnUserList() throws Exception {
+        UserView user = new UserView(7L, "firstname@lastname", null,
+                null, UserStatus.OFFLINE, null, null);
+        given(userService.getUsers(0L, UserService.DEFAULT_PAGE_SIZE)).willReturn(Collections.singletonList(user));
+
+        MvcResult result = mockMvc.perform(get("/users").accept("application/x-protobuf"))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType("application/x-protobuf"))
+                .andReturn();
+
+        CodedInputStream list = CodedInputStream.newInstance(result.getResponse().getContentAsByteArray());
+        assertEquals(1, WireFormat.getTagFieldNumber(list.readTag()));
+        CodedInputStream message = CodedInputStream.newInstance(list.readByteArray());
+        assertEquals(1, WireFormat.getTagFieldNumber(message.readTag()));
+        assertEquals(7L, message.readInt64());
+        assertEquals(3, WireFormat.getTagFieldNumber(message.readTag()));
+        assertEquals("firstname@lastname", message.readString());
+        // OFFLINE: logged_in is false and left out, status 2
+        assertEquals(7, WireFormat.getTagFieldNumber(message.readTag()));
+        assertEquals(2, message.readEnum());
+        assertTrue(message.isAtEnd());
+        assertTrue(list.isAtEnd());
+    }
+
+    @Test // poll users without changes -> 304, the page is not loaded
+    public void givenCurrentETag_whenGetUsers_thenNotModified() throws Exception {
+        given(userService.getUsersETag()).willReturn("42");
+
+        mockMvc.perform(get("/users").header("If-None-Match", "\"42\""))
+                .andExpect(status().isNotModified())
+                .andExpect(header().string("ETag", "W/\"42\""));
+
+        Mockito.verify(userService, Mockito.never()).getUsers(Mockito.anyLong(), Mockito.anyInt());
+    }
+
+    @Test // page through users; full page hands out the next cursor
+    public void givenFullPage_whenGetUsers_thenReturnNextCursor() throws Exception {
+        // given
+        UserView user = view(7L, "firstname@lastname", UserStatus.ONLINE);
+
+        given(userService.getUsers(3L, 1)).willReturn(Collections.singletonList(user));
+
+        // when
+        MockHttpServletRequestBuilder getRequest = get("/users?after=3&limit=1").contentType(MediaType.APPLICATION_JSON);
+
+        // then
+        mockMvc.perform(getRequest).andExpect(status().isOk())
+                .andExpect(jsonPath("$", hasSize(1)))
+                .andExpect(jsonPath("$[0].id", is(7)))
+                .andExpect(header().string("X-Next-Cursor", "7"));
+    }
+
+    @Test // export all users as ndjson, one line per user
+    public void givenUsers_whenExportUsers_thenStreamNdjson() throws Exception {
+        // given
+        User user1 = new User();
+        user1.setId(1L);
+        user1.setName("pw1");
+        user1.setUsername("anna");
+        user1.setStatus(UserStatus.ONLINE);
+        User user2 = new User();
+        user2.setId(2L);
+        user2.setName("pw2");
+        user2.setUsername("bert");
+        user2.setStatus(UserStatus.OFFLINE);
+
+        willAnswer(invocation -> {
+            Consumer<User> consumer = invocation.getArgument(0);
+            consumer.accept(user1);
+            consumer.accept(user2);
+            return null;
+        }).given(userService).exportUsers(Mockito.any());
+
+        // when -> the body is written asynchronously
+        MvcResult result = mockMvc.perform(get("/users/export"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        // then
+        String body = mockMvc.perform(asyncDispatch(result))
+                .andExpect(status().isOk())
+                .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_NDJSON))
+                .andReturn().getResponse().getContentAsString();
+        String[] lines = body.split("\n");
+        assertEquals(2, lines.length);
+        assertTrue(lines[0].contains("\"username\":\"anna\""));
+        assertTrue(lines[1].contains("\"username\":\"bert\""));
     }
 
     @Test // register user; OK - given
@@ -94,13 +223,42 @@ public class UserControllerTest {
         mockMvc.perform(postRequest)
                 .andExpect(status().isCreated())
                 .andExpect(jsonPath("$.id", is(user.getId().intValue())))
-                .andExpect(jsonPath("$.name", is(user.getName())))
+                .andExpect(jsonPath("$.name").doesNotExist())
                 .andExpect(jsonPath("$.username", is(user.getUsername())))
                 .andExpect(jsonPath("$.status", is(user.getStatus().toString())))
                 .andExpect(jsonPath("$.creation_date", is(user.getCreation_date())))
         ;
     }
 
+    @Test // register many users, one result per entry
+    public void createUsers_batch_perItemResults() throws Exception {
+        UserPostDTO first = new UserPostDTO();
+        first.setName("pw");
+        first.setUsername("anna");
+        UserPostDTO second = new UserPostDTO();
+        second.setName("pw");
+        second.setUsername("anna");
+
+        UserGetDTO created = new UserGetDTO();
+        created.setId(1L);
+        created.setUsername("anna");
+        created.setStatus(UserStatus.ONLINE);
+        given(userService.createUsers(Mockito.anyList())).willReturn(Arrays.asList(
+                new UserBatchResultDTO(0, 201, null, created),
+                new UserBatchResultDTO(1, 409, "username is not unique within the batch", null)));
+
+        MockHttpServletRequestBuilder postRequest = post("/users/batch")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(asJsonString(Arrays.asList(first, second)));
+
+        mockMvc.perform(postRequest)
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$", hasSize(2)))
+                .andExpect(jsonPath("$[0].status", is(201)))
+                .andExpect(jsonPath("$[0].user.username", is("anna")))
+                .andExpect(jsonPath("$[1].status", is(409)));
+    }
+
     @Test // register, username already taken; OK
     public void createUser_UsernameTaken() throws Exception {
         //create user with username anna first
@@ -140,6 +298,21 @@ public class UserControllerTest {
         mockMvc.perform(postRequest).andExpect(status().isConflict());
     }
 
+    @Test // login throttled: 429 and the service is never asked
+    public void givenTooManyAttempts_whenLogin_thenTooManyRequests() throws Exception {
+        willThrow(new ResponseStatusException(HttpStatus.TOO_MANY_REQUESTS, "Too many login attempts"))
+                .given(loginRateLimiter).checkLogin("testUsername", "127.0.0.1");
+
+        mockMvc.perform(put("/users/login?username=testUsername&pw=wrong"))
+                .andExpect(status().isTooManyRequests());
+
+        Mockito.verify(userService, Mockito.never()).loginUser(Mockito.any(), Mockito.any());
+    }
+
+    private static UserView view(Long id, String username, UserStatus status) {
+        return new UserView(id, username, new Date(), "token" + id, status, null, 0L);
+    }
+
     /**
      * Helper Method to convert userPostDTO into a JSON string such that the input
      * can be processed
@@ -160,29 +333,79 @@ public class UserControllerTest {
     @Test //with ID get userProfile; JSONPATH? (OK)
     public void givenUserID_getUserProfile_thenReturnJsonArray() throws Exception {
         // create user and set ID
-        User user = new User();
-        user.setName("Firstname Lastname");
-        user.setUsername("firstname@lastname");
-        user.setId(1L);
-        User createdUser = userService.createUser(user);
+        UserView user = view(1L, "firstname@lastname", UserStatus.ONLINE);
 
         // this mocks the UserService -> we define above what the userService should
-        // return when findByID() is called
-        given(userService.findByID(Mockito.anyLong())).willReturn(createdUser);
+        // return when getProfile() is called
+        given(userService.getProfile(Mockito.anyLong())).willReturn(user);
 
         // build GET request
         MockHttpServletRequestBuilder getRequest = get("/users/"+user.getId());
 
         // then
         mockMvc.perform(getRequest).andExpect(status().isOk())
-        //.andExpect(jsonPath("$", hasSize(1)))
-        //.andExpect(jsonPath("$.name", is(user.getName())))
-        //.andExpect(jsonPath("$.username", is(createdUser.getUsername())))
-        //.andExpect(jsonPath("$.status", is(createdUser.getStatus().toString())))
+        .andExpect(jsonPath("$.name").doesNotExist())
+        .andExpect(jsonPath("$.username", is(user.getUsername())))
+        .andExpect(jsonPath("$.status", is(user.getStatus().toString())))
         ;
     }
 
 
+    @Test // getProfile with the current ETag -> 304 without loading the user
+    public void givenCurrentETag_getUserProfile_thenNotModified() throws Exception {
+        given(userService.getUserETag(1L)).willReturn("3-ONLINE");
+
+        mockMvc.perform(get("/users/1").header("If-None-Match", "\"3-ONLINE\""))
+                .andExpect(status().isNotModified());
+
+        Mockito.verify(userService, Mockito.never()).getProfile(Mockito.anyLong());
+    }
+
+    @Test // upcoming birthdays; full page hands out the next cursor (birthday_key-id)
+    public void givenFullPage_whenGetUpcomingBirthdays_thenReturnNextCursor() throws Exception {
+        User user = new User();
+        user.setId(7L);
+        user.setName("Firstname Lastname");
+        user.setUsername("firstname@lastname");
+        user.setStatus(UserStatus.OFFLINE);
+        user.setBirthday(new Date(631_152_000_000L));
+
+        given(userService.getUpcomingBirthdays(3, null, 1)).willReturn(Collections.singletonList(user));
+
+        mockMvc.perform(get("/users/birthdays?days=3&limit=1"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$", hasSize(1)))
+                .andExpect(jsonPath("$[0].id", is(7)))
+                .andExpect(header().string("X-Next-Cursor", "101-7"));
+    }
+
+    @Test // search by username; the default limit is used
+    public void givenMatches_whenSearchUsers_thenReturnJsonArray() throws Exception {
+        given(userService.searchUsers("fir", UserService.DEFAULT_SEARCH_LIMIT))
+            .willReturn(Arrays.asList(new UserSearchResultDTO(7L, "firstname"), new UserSearchResultDTO(3L, "first")));
+
+        mockMvc.perform(get("/users/search?q=fir"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$", hasSize(2)))
+                .andExpect(jsonPath("$[0].id", is(7)))
+                .andExpect(jsonPath("$[0].username", is("firstname")))
+                .andExpect(jsonPath("$[1].username", is("first")));
+    }
+
+    @Test // getProfile with an outdated ETag -> full response with the new one
+    public void givenOutdatedETag_getUserProfile_thenReturnNewETag() throws Exception {
+        UserView user = view(1L, "firstname@lastname", UserStatus.OFFLINE);
+
+        given(userService.getUserETag(1L)).willReturn("4-OFFLINE");
+        given(userService.getProfile(1L)).willReturn(user);
+
+        mockMvc.perform(get("/users/1").header("If-None-Match", "\"3-ONLINE\""))
+                .andExpect(status().isOk())
+                .andExpect(header().string("ETag", "W/\"4-OFFLINE\""))
+                .andExpect(jsonPath("$.status", is("OFFLINE")));
+    }
+
+
     @Test // getProfile user with INVALID userID NOT found: OK
     public void givenINVALIDUserID_getUserProfile() throws Exception {
         User user = new User();
@@ -190,7 +413,7 @@ public class UserControllerTest {
         user.setUsername("testUsername");
         user.setName("123");
 
-        given(userService.findByID(Mockito.anyLong())).willThrow(new ResponseStatusException(HttpStatus.NOT_FOUND, "Error: reason<string>"));
+        given(userService.getProfile(Mockito.anyLong())).willThrow(new ResponseStatusException(HttpStatus.NOT_FOUND, "Error: reason<string>"));
 
         // when/then -> do the request + validate the result
         MockHttpServletRequestBuilder getRequest = get("/users/"+user.getId());
@@ -239,8 +462,6 @@ public class UserControllerTest {
         userPutDTO.setLogged_in(user0.getLogged_in());
         userPutDTO.setBirthday(null);
 
-        given(userService.updateUser(Mockito.any())).willReturn(userGetDTO);
-
         // when/then -> do the request + validate the result
         MockHttpServletRequestBuilder putRequest = put("/users/"+user0.getId())
                 .contentType(MediaType.APPLICATION_JSON)
@@ -254,6 +475,41 @@ public class UserControllerTest {
         //.andExpect(jsonPath("$.status", is(user.getStatus().toString())))
         //.andExpect(jsonPath("$.creation_date", is(user.getCreation_date())))
         ;
+        Mockito.verify(userService).updateUser(Mockito.eq(user0.getId().longValue()), Mockito.any(), Mockito.isNull());
+    }
+
+    @Test // update profile based on the ETag of the profile -> its version is checked
+    public void edit_ifMatch_versionPassedOn() throws Exception {
+        UserPutDTO userPutDTO = new UserPutDTO();
+        userPutDTO.setUsername("new");
+        userPutDTO.setVersion(1L);
+        userPutDTO.setStatus(UserStatus.ONLINE);
+
+        MockHttpServletRequestBuilder putRequest = put("/users/1")
+                .header("If-Match", "\"3-ONLINE\"")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(asJsonString(userPutDTO));
+
+        mockMvc.perform(putRequest).andExpect(status().isNoContent());
+
+        Mockito.verify(userService).updateUser(Mockito.eq(1L), Mockito.any(), Mockito.eq(3L));
+    }
+
+    @Test // update profile that changed in the meantime -> 409
+    public void edit_outdatedVersion_conflict() throws Exception {
+        UserPutDTO userPutDTO = new UserPutDTO();
+        userPutDTO.setUsername("new");
+        userPutDTO.setVersion(1L);
+        userPutDTO.setStatus(UserStatus.ONLINE);
+
+        Mockito.doThrow(new ResponseStatusException(HttpStatus.CONFLICT, "changed"))
+                .when(userService).updateUser(Mockito.eq(1L), Mockito.any(), Mockito.eq(1L));
+
+        MockHttpServletRequestBuilder putRequest = put("/users/1")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(asJsonString(userPutDTO));
+
+        mockMvc.perform(putRequest).andExpect(status().isConflict());
     }
 
     @Test // update profile not found: OK
@@ -266,7 +522,8 @@ public class UserControllerTest {
         UserPostDTO userPutDTO = new UserPostDTO();
         userPutDTO.setUsername("newName");
 
-        given(userService.updateUser(Mockito.any())).willThrow(new ResponseStatusException(HttpStatus.NOT_FOUND, "Error: reason<string>"));
+        Mockito.doThrow(new ResponseStatusException(HttpStatus.NOT_FOUND, "Error: reason<string>"))
+                .when(userService).updateUser(Mockito.anyLong(), Mockito.any(), Mockito.any());
 
         // when/then -> do the request + validate the result
         MockHttpServletRequestBuilder putRequest = put("/users/"+user.getId())
@@ -0,0 +1,54 @@
+package ch.uzh.ifi.hase.soprafs22.metrics;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.servlet.HandlerMapping;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class RequestStatisticsFilterTest {
+
+  @Test
+  public void doFilter_recordsCountsPerMapping() throws Exception {
+    SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    RequestStatisticsFilter filter = new RequestStatisticsFilter(registry, 1);
+
+    MockHttpServletRequest request = new MockHttpServletRequest("PUT", "/users/1");
+    // simulates a handler that runs three statements in two flushes
+    HttpServlet handler = new HttpServlet() {
+      @Override
+      protected void service(HttpServletRequest req, HttpServletResponse resp) {
+        req.setAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE, "/users/{id}");
+        RequestStatistics.statementExecuted();
+        RequestStatistics.flushed();
+        RequestStatistics.statementExecuted();
+        RequestStatistics.statementExecuted();
+        RequestStatistics.flushed();
+        RequestStatistics.entityLoaded();
+      }
+    };
+
+    // when
+    filter.doFilter(request, new MockHttpServletResponse(), new MockFilterChain(handler));
+
+    // then
+    DistributionSummary statements = registry.get("hibernate.request.statements")
+        .tag("method", "PUT").tag("uri", "/users/{id}").summary();
+    assertEquals(1, statements.count());
+    assertEquals(3, statements.totalAmount());
+    assertEquals(2, registry.get("hibernate.request.flushes").summary().totalAmount());
+    assertEquals(1, registry.get("hibernate.request.entities.loaded").summary().totalAmount());
+
+    // outside of a request nothing is counted
+    RequestStatistics.statementExecuted();
+    assertEquals(3, statements.totalAmount());
+  }
+}
@@ -0,0 +1,121 @@
+package ch.uzh.ifi.hase.soprafs22.repository;
+
+import ch.uzh.ifi.hase.soprafs22.constant.UserStatus;
+import ch.uzh.ifi.hase.soprafs22.entity.User;
+import org.hibernate.resource.jdbc.spi.StatementInspector;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.autoconfigure.orm.jpa.TestEntityManager;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.sql.ParameterMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs every lookup and update of the UserRepository against a seeded USER table,
+ * records the SQL Hibernate sends and checks the EXPLAIN plan of each statement:
+ * none of them may scan the whole table. The streams of the whole table
+ * (export, username index) read every row by design and are left out.
+ */
+@DataJpaTest(properties = "spring.jpa.properties.hibernate.session_factory.statement_inspector="
+    + "ch.uzh.ifi.hase.soprafs22.repository.UserQueryPlanIntegrationTest$RecordingStatementInspector")
+public class UserQueryPlanIntegrationTest {
+
+  private static final int SEEDED_USERS = 500;
+
+  @Autowired
+  private TestEntityManager entityManager;
+
+  @Autowired
+  private UserRepository userRepository;
+
+  @Autowired
+  private JdbcTemplate jdbcTemplate;
+
+  /**
+   * Remembers the SQL of every statement Hibernate prepares.
+   */
+  public static class RecordingStatementInspector implements StatementInspector {
+
+    static final Set<String> STATEMENTS = Collections.synchronizedSet(new LinkedHashSet<>());
+
+    @Override
+    public String inspect(String sql) {
+      STATEMENTS.add(sql);
+      return sql;
+    }
+  }
+
+  @Test
+  public void repositoryQueries_useIndexes() {
+    List<User> users = new ArrayList<>();
+    for (int i = 0; i < SEEDED_USERS; i++) {
+      User user = new User();
+      user.setName("name" + i);
+      user.setUsername("username" + i);
+      user.setToken("token" + i);
+      user.setStatus(i % 2 == 0 ? UserStatus.ONLINE : UserStatus.OFFLINE);
+      user.setCreation_date(new Date());
+      user.setBirthday(new Date(631_152_000_000L + i * 86_400_000L));
+      users.add(entityManager.persist(user));
+    }
+    entityManager.flush();
+    entityManager.clear();
+    entityManager.getEntityManager().getEntityManagerFactory().getCache().evictAll();
+    jdbcTemplate.execute("analyze");
+    long id = users.get(SEEDED_USERS / 2).getId();
+
+    RecordingStatementInspector.STATEMENTS.clear();
+    userRepository.findByToken("token7");
+    userRepository.findVersionById(id);
+    userRepository.findExistingUsernames(Arrays.asList("username1", "username2"));
+    userRepository.findByIdGreaterThanOrderByIdAsc(id, PageRequest.of(0, 20));
+    userRepository.findViewById(id);
+    userRepository.findBirthdays(101, 131, 0, 0L, PageRequest.of(0, 20));
+    userRepository.findById(id);
+    userRepository.findByUsername("username8");
+    userRepository.updateToken(id, "new token");
+    userRepository.updateStatus(UserStatus.OFFLINE, Arrays.asList(id, id + 1));
+    userRepository.updateProfile(id, 0L, "renamed", new Date());
+    userRepository.backfillBirthdayKeys();
+    entityManager.flush();
+
+    List<String> statements = new ArrayList<>(RecordingStatementInspector.STATEMENTS);
+    assertTrue(statements.size() >= 11, "recorded " + statements);
+    for (String sql : statements) {
+      String plan = explain(sql);
+      assertTrue(!plan.contains("tableScan"), "full scan of USER:\n" + sql + "\n" + plan);
+    }
+  }
+
+  @Test
+  public void explain_unindexedColumn_detectsFullScan() {
+    assertTrue(explain("select id from user where password = ?").contains("tableScan"));
+  }
+
+  // the plan does not depend on the values, the parameters are left null
+  private String explain(String sql) {
+    return jdbcTemplate.execute("explain " + sql, (PreparedStatement statement) -> {
+      ParameterMetaData parameters = statement.getParameterMetaData();
+      for (int i = 1; i <= parameters.getParameterCount(); i++) {
+        statement.setObject(i, null);
+      }
+      try (ResultSet rs = statement.executeQuery()) {
+        rs.next();
+        return rs.getString(1);
+      }
+    });
+  }
+}
@@ -2,13 +2,18 @@ package ch.uzh.ifi.hase.soprafs22.repository;
 
 import ch.uzh.ifi.hase.soprafs22.constant.UserStatus;
 import ch.uzh.ifi.hase.soprafs22.entity.User;
+import org.hibernate.Session;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
 import org.springframework.boot.test.autoconfigure.orm.jpa.TestEntityManager;
+import org.springframework.data.domain.PageRequest;
+
+import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
 
 @DataJpaTest
 public class UserRepositoryIntegrationTest {
@@ -20,7 +25,7 @@ public class UserRepositoryIntegrationTest {
   private UserRepository userRepository;
 
   @Test
-  public void findByName_success() {
+  public void findByToken_success() {
     // given
     User user = new User();
     user.setName("Firstname Lastname");
@@ -32,14 +37,59 @@ public class UserRepositoryIntegrationTest {
     entityManager.flush();
 
     // when
-    User found = userRepository.findByName(user.getName());
+    User found = userRepository.findByToken(user.getToken());
 
     // then
     assertNotNull(found.getId());
-    assertEquals(found.getName(), user.getName());
     assertEquals(found.getUsername(), user.getUsername());
     assertEquals(found.getToken(), user.getToken());
     assertEquals(found.getStatus(), user.getStatus());
     assertEquals(found.getCreation_date(), user.getCreation_date());
   }
+
+  @Test
+  public void findByIdGreaterThan_returnsNextPageInIdOrder() {
+    // given
+    User[] users = new User[3];
+    for (int i = 0; i < users.length; i++) {
+      users[i] = new User();
+      users[i].setName("name" + i);
+      users[i].setUsername("username" + i);
+      users[i].setStatus(UserStatus.OFFLINE);
+      entityManager.persist(users[i]);
+    }
+    entityManager.flush();
+
+    // when
+    List<UserView> page = userRepository.findByIdGreaterThanOrderByIdAsc(users[0].getId(), PageRequest.of(0, 1));
+
+    // then
+    assertEquals(1, page.size());
+    assertEquals(users[1].getId(), page.get(0).getId());
+    assertEquals(users[1].getUsername(), page.get(0).getUsername());
+    assertEquals(users[1].getVersion(), page.get(0).getVersion());
+  }
+
+  @Test
+  public void findViewById_columnsOfTheUser() {
+    // given
+    User user = new User();
+    user.setName("Firstname Lastname");
+    user.setUsername("firstname@lastname");
+    user.setStatus(UserStatus.ONLINE);
+    user.setToken("1");
+    entityManager.persist(user);
+    entityManager.flush();
+    entityManager.clear();
+
+    // when
+    UserView view = userRepository.findViewById(user.getId());
+
+    // then -> read as columns, the user does not become managed
+    assertEquals(user.getUsername(), view.getUsername());
+    assertEquals(user.getToken(), view.getToken());
+    assertEquals(user.getStatus(), view.getStatus());
+    assertEquals(0, entityManager.getEntityManager().unwrap(Session.class).getStatistics().getEntityCount());
+    assertNull(userRepository.findViewById(user.getId() + 1000));
+  }
 }
@@ -0,0 +1,46 @@
+package ch.uzh.ifi.hase.soprafs22.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CredentialServiceTest {
+
+  private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+  private CredentialService credentialService;
+
+  @AfterEach
+  public void tearDown() {
+    credentialService.destroy();
+  }
+
+  @Test
+  public void hash_matchesOnlyTheSamePassword() {
+    credentialService = new CredentialService(4, 2, 8, 5000, registry);
+
+    String hash = credentialService.hash("secret");
+
+    assertNotEquals("secret", hash);
+    assertTrue(credentialService.matches("secret", hash));
+    assertFalse(credentialService.matches("other", hash));
+    assertFalse(credentialService.matches("secret", null));
+    assertEquals(1, registry.get("credentials.bcrypt").tag("operation", "hash").timer().count());
+  }
+
+  @Test
+  public void hashAsync_poolSaturated_rejectedWith503() {
+    // one worker and one queue slot: the third hash has no room left
+    credentialService = new CredentialService(12, 1, 1, 5000, registry);
+    credentialService.hashAsync("first");
+    credentialService.hashAsync("second");
+
+    ResponseStatusException e = assertThrows(ResponseStatusException.class, () -> credentialService.hashAsync("third"));
+    assertEquals(HttpStatus.SERVICE_UNAVAILABLE, e.getStatus());
+    assertEquals(1.0, registry.get("credentials.rejected").counter().count());
+  }
+}
@@ -0,0 +1,111 @@
+package ch.uzh.ifi.hase.soprafs22.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LoginRateLimiterTest {
+
+  private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+  private final AtomicLong now = new AtomicLong();
+
+  // 3 attempts per username and 10 per address, each refilling at one token every 10 seconds
+  private LoginRateLimiter limiter(int maxBuckets) {
+    return new LoginRateLimiter(registry, true, new LoginRateLimiter.Limit(3, 6), new LoginRateLimiter.Limit(10, 6),
+        4, maxBuckets, now::get);
+  }
+
+  private double attempts(String outcome) {
+    return registry.counter("user.login.attempts", "outcome", outcome).count();
+  }
+
+  @Test
+  public void checkLogin_burstOnOneUsername_limitedUntilRefilled() {
+    LoginRateLimiter limiter = limiter(1000);
+    for (int i = 0; i < 3; i++) {
+      limiter.checkLogin("Anna", "10.0.0." + i);
+    }
+
+    ResponseStatusException e = assertThrows(ResponseStatusException.class, () -> limiter.checkLogin("anna ", "10.0.0.9"));
+    assertEquals(HttpStatus.TOO_MANY_REQUESTS, e.getStatus());
+    // other usernames are not affected
+    limiter.checkLogin("bert", "10.0.0.9");
+
+    now.addAndGet(TimeUnit.SECONDS.toNanos(10));
+    limiter.checkLogin("anna", "10.0.0.9");
+    assertThrows(ResponseStatusException.class, () -> limiter.checkLogin("anna", "10.0.0.9"));
+
+    assertEquals(5.0, attempts("allowed"));
+    assertEquals(2.0, attempts("limited"));
+  }
+
+  @Test
+  public void checkLogin_manyUsernamesFromOneAddress_limited() {
+    LoginRateLimiter limiter = limiter(1000);
+    for (int i = 0; i < 10; i++) {
+      limiter.checkLogin("user" + i, "10.0.0.1");
+    }
+
+    assertThrows(ResponseStatusException.class, () -> limiter.checkLogin("user10", "10.0.0.1"));
+    limiter.checkLogin("user10", "10.0.0.2");
+  }
+
+  @Test
+  public void evictIdleBuckets_refilledBucketsDropped() {
+    LoginRateLimiter limiter = limiter(1000);
+    limiter.checkLogin("anna", "10.0.0.1");
+    limiter.checkLogin("bert", "10.0.0.2");
+    assertEquals(4, limiter.bucketCount());
+
+    now.addAndGet(TimeUnit.SECONDS.toNanos(5));
+    limiter.evictIdleBuckets();
+    assertEquals(4, limiter.bucketCount());
+
+    // one token taken from each bucket: all of them are full again after 10 seconds
+    now.addAndGet(TimeUnit.SECONDS.toNanos(5));
+    limiter.evictIdleBuckets();
+    assertEquals(0, limiter.bucketCount());
+  }
+
+  @Test
+  public void checkLogin_stripeFull_evictsRefilledBuckets() {
+    // one bucket per stripe
+    LoginRateLimiter limiter = limiter(4);
+    for (int i = 0; i < 100; i++) {
+      limiter.checkLogin("user" + i, null);
+      now.addAndGet(TimeUnit.SECONDS.toNanos(10));
+    }
+
+    assertTrue(limiter.bucketCount() <= 4);
+  }
+
+  @Test
+  public void checkLogin_stripeFullOfActiveBuckets_limitedWithoutGrowing() {
+    // one bucket per stripe, none of them refills while the usernames are sprayed
+    LoginRateLimiter limiter = limiter(4);
+    int limitedCount = 0;
+    for (int i = 0; i < 100; i++) {
+      try {
+        limiter.checkLogin("user" + i, null);
+      }
+      catch (ResponseStatusException e) {
+        assertEquals(HttpStatus.TOO_MANY_REQUESTS, e.getStatus());
+        limitedCount++;
+      }
+    }
+
+    assertTrue(limiter.bucketCount() <= 4);
+    assertTrue(limitedCount >= 96);
+
+    // once the buckets have refilled there is room again
+    now.addAndGet(TimeUnit.SECONDS.toNanos(10));
+    limiter.checkLogin("user100", null);
+  }
+}
@@ -0,0 +1,97 @@
+package ch.uzh.ifi.hase.soprafs22.service;
+
+import ch.uzh.ifi.hase.soprafs22.constant.UserStatus;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.io.IOException;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+public class PresenceBroadcasterTest {
+
+  private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+  private PresenceBroadcaster broadcaster(int maxSessions) {
+    return new PresenceBroadcaster(new ObjectMapper(), registry, maxSessions, 1000, 1024, Runnable::run);
+  }
+
+  private static WebSocketSession session(String id) {
+    WebSocketSession session = mock(WebSocketSession.class);
+    when(session.getId()).thenReturn(id);
+    return session;
+  }
+
+  @Test
+  public void broadcast_transitionsOfOneTick_oneFrameSharedBySessions() throws IOException {
+    PresenceBroadcaster broadcaster = broadcaster(10);
+    WebSocketSession first = session("1");
+    WebSocketSession second = session("2");
+    broadcaster.register(first);
+    broadcaster.register(second);
+
+    broadcaster.onUserEvent(UserEvent.statusChanged(1L, UserStatus.ONLINE));
+    broadcaster.onUserEvent(UserEvent.profileChanged(2L, "renamed", null));
+    broadcaster.onUserEvent(UserEvent.statusChanged(3L, UserStatus.ONLINE));
+    broadcaster.onUserEvent(UserEvent.statusChanged(1L, UserStatus.OFFLINE));
+    broadcaster.broadcast();
+    broadcaster.broadcast();
+
+    ArgumentCaptor<TextMessage> toFirst = ArgumentCaptor.forClass(TextMessage.class);
+    ArgumentCaptor<TextMessage> toSecond = ArgumentCaptor.forClass(TextMessage.class);
+    verify(first, times(1)).sendMessage(toFirst.capture());
+    verify(second, times(1)).sendMessage(toSecond.capture());
+    assertEquals("{\"seq\":1,\"online\":[3],\"offline\":[1]}", toFirst.getValue().getPayload());
+    assertSame(toFirst.getValue(), toSecond.getValue());
+  }
+
+  @Test
+  public void broadcast_failingSession_removedAndClosed() throws IOException {
+    PresenceBroadcaster broadcaster = broadcaster(10);
+    WebSocketSession broken = session("1");
+    doThrow(new IOException("Broken pipe")).when(broken).sendMessage(any());
+    broadcaster.register(broken);
+
+    broadcaster.onUserEvent(UserEvent.statusChanged(1L, UserStatus.ONLINE));
+    broadcaster.broadcast();
+
+    assertEquals(0, broadcaster.sessionCount());
+    verify(broken).close(CloseStatus.SESSION_NOT_RELIABLE);
+  }
+
+  @Test
+  public void broadcast_sendersBusy_frameSkipped() throws IOException {
+    PresenceBroadcaster broadcaster = new PresenceBroadcaster(new ObjectMapper(), registry, 10, 1000, 1024,
+        task -> {
+          throw new RejectedExecutionException();
+        });
+    WebSocketSession session = session("1");
+    broadcaster.register(session);
+
+    broadcaster.onUserEvent(UserEvent.statusChanged(1L, UserStatus.ONLINE));
+    broadcaster.broadcast();
+
+    verify(session, never()).sendMessage(any());
+    assertEquals(1, broadcaster.sessionCount());
+    assertEquals(1.0, registry.counter("user.presence.ws.skipped").count());
+  }
+
+  @Test
+  public void register_tooManySessions_rejected() {
+    PresenceBroadcaster broadcaster = broadcaster(1);
+    WebSocketSession first = session("1");
+
+    assertTrue(broadcaster.register(first));
+    assertFalse(broadcaster.register(session("2")));
+    broadcaster.unregister(first);
+    assertTrue(broadcaster.register(session("3")));
+  }
+}
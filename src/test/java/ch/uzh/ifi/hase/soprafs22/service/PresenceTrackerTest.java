@@ -0,0 +1,65 @@
+package ch.uzh.ifi.hase.soprafs22.service;
+
+import ch.uzh.ifi.hase.soprafs22.constant.UserStatus;
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PresenceTrackerTest {
+
+  private final Clock clock = Clock.fixed(Instant.parse("2022-03-01T12:00:00Z"), ZoneOffset.UTC);
+
+  @Test
+  public void markOnline_thenOffline_statusAndPendingWrites() {
+    PresenceTracker tracker = new PresenceTracker(1000, clock);
+
+    assertTrue(tracker.markOnline(1L));
+    assertFalse(tracker.markOnline(1L));
+    assertEquals(UserStatus.ONLINE, tracker.statusOf(1L));
+    assertEquals(UserStatus.OFFLINE, tracker.statusOf(2L));
+
+    assertTrue(tracker.markOffline(1L));
+    assertEquals(UserStatus.OFFLINE, tracker.statusOf(1L));
+
+    // only the latest status of a user is written
+    assertEquals(Collections.singletonMap(1L, UserStatus.OFFLINE), tracker.drainPendingWrites());
+    assertTrue(tracker.drainPendingWrites().isEmpty());
+  }
+
+  @Test
+  public void expire_withoutHeartbeat_goesOffline() {
+    // expiry of 0 -> every heartbeat is already too old
+    PresenceTracker tracker = new PresenceTracker(0, clock);
+    tracker.markOnline(1L);
+    tracker.drainPendingWrites();
+
+    assertEquals(UserStatus.OFFLINE, tracker.statusOf(1L));
+    assertEquals(Collections.singletonList(1L), tracker.expire());
+    assertEquals(0, tracker.onlineCount());
+
+    Map<Long, UserStatus> writes = tracker.drainPendingWrites();
+    assertEquals(Collections.singletonMap(1L, UserStatus.OFFLINE), writes);
+  }
+
+  @Test
+  public void requeue_afterFailedWrite_newerChangeWins() {
+    PresenceTracker tracker = new PresenceTracker(60_000, clock);
+    tracker.markOnline(1L);
+    tracker.markOnline(2L);
+    Map<Long, UserStatus> failed = tracker.drainPendingWrites();
+
+    // user 2 logs out while the failed write was in flight
+    tracker.markOffline(2L);
+    tracker.requeue(failed);
+
+    Map<Long, UserStatus> retried = tracker.drainPendingWrites();
+    assertEquals(UserStatus.ONLINE, retried.get(1L));
+    assertEquals(UserStatus.OFFLINE, retried.get(2L));
+  }
+}
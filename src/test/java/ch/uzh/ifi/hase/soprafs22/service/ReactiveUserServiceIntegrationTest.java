@@ -0,0 +1,155 @@
+package ch.uzh.ifi.hase.soprafs22.service;
+
+import ch.uzh.ifi.hase.soprafs22.constant.UserEventType;
+import ch.uzh.ifi.hase.soprafs22.constant.UserStatus;
+import ch.uzh.ifi.hase.soprafs22.controller.ReactiveUserEventController;
+import ch.uzh.ifi.hase.soprafs22.entity.User;
+import ch.uzh.ifi.hase.soprafs22.repository.UserRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.SpyBean;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for the ReactiveUserService against R2DBC H2, on a database of
+ * its own so the schema is not shared with the other test contexts.
+ *
+ * @see ReactiveUserService
+ */
+@SpringBootTest(properties = {
+    "credentials.bcrypt-strength=4",
+    "spring.datasource.url=jdbc:h2:mem:reactive;DB_CLOSE_DELAY=-1",
+    "spring.r2dbc.url=r2dbc:h2:mem:///reactive?options=DB_CLOSE_DELAY=-1"})
+@ActiveProfiles("reactive")
+public class ReactiveUserServiceIntegrationTest {
+
+  @Qualifier("userRepository")
+  @Autowired
+  private UserRepository userRepository;
+
+  @Autowired
+  private ReactiveUserService userService;
+
+  @SpyBean
+  private UserEventHub eventHub;
+
+  @Autowired
+  private ReactiveUserEventController eventController;
+
+  @BeforeEach
+  public void setup() {
+    userRepository.deleteAll();
+  }
+
+  @Test
+  public void createUser_thenLogin_thenLogout() {
+    User testUser = new User();
+    testUser.setName("testName");
+    testUser.setUsername("testUsername");
+
+    User createdUser = userService.createUser(testUser).block();
+
+    // the row written over R2DBC is a regular User entity
+    User stored = userRepository.findByUsername("testUsername");
+    assertEquals(createdUser.getId(), stored.getId());
+    assertNotEquals("testName", stored.getPassword());
+    assertEquals(UserStatus.ONLINE, userService.findByID(createdUser.getId()).block().getStatus());
+
+    User loggedIn = userService.loginUser("testUsername", "testName").block();
+    assertNotEquals(createdUser.getToken(), loggedIn.getToken());
+    assertEquals(loggedIn.getToken(), userRepository.findByUsername("testUsername").getToken());
+
+    userService.logoutUser(loggedIn.getToken()).block();
+    assertEquals(UserStatus.OFFLINE, userService.findByID(createdUser.getId()).block().getStatus());
+  }
+
+  @Test
+  public void createUser_duplicateUsername_conflict() {
+    User testUser = new User();
+    testUser.setName("testName");
+    testUser.setUsername("testUsername");
+    userService.createUser(testUser).block();
+
+    User testUser2 = new User();
+    testUser2.setName("testName2");
+    testUser2.setUsername("testUsername");
+
+    ResponseStatusException e = assertThrows(ResponseStatusException.class, () -> userService.createUser(testUser2).block());
+    assertEquals(HttpStatus.CONFLICT, e.getStatus());
+  }
+
+  @Test
+  public void getUsers_keysetPages() {
+    for (int i = 0; i < 3; i++) {
+      User user = new User();
+      user.setName("name" + i);
+      user.setUsername("username" + i);
+      userService.createUser(user).block();
+    }
+
+    List<User> firstPage = userService.getUsers(0, 2).collectList().block();
+    List<User> secondPage = userService.getUsers(firstPage.get(1).getId(), 2).collectList().block();
+
+    assertEquals(2, firstPage.size());
+    assertEquals(1, secondPage.size());
+    assertEquals("username2", secondPage.get(0).getUsername());
+  }
+
+  @Test
+  public void createLoginLogout_publishUserEvents() {
+    User testUser = new User();
+    testUser.setName("testName");
+    testUser.setUsername("eventUsername");
+    long id = userService.createUser(testUser).block().getId();
+    userService.logoutUser(testUser.getToken()).block();
+    userService.loginUser("eventUsername", "testName").block();
+
+    // the same events as the UserService: created, then OFFLINE and ONLINE again
+    ArgumentCaptor<UserEvent> captor = ArgumentCaptor.forClass(UserEvent.class);
+    Mockito.verify(eventHub, Mockito.atLeastOnce()).onUserEvent(captor.capture());
+    List<UserEvent> published = captor.getAllValues().stream()
+        .filter(event -> event.getUserId() == id)
+        .collect(Collectors.toList());
+    assertEquals(3, published.size());
+    assertEquals(UserEventType.CREATED, published.get(0).getType());
+    assertEquals(UserStatus.OFFLINE, published.get(1).getStatus());
+    assertEquals(UserStatus.ONLINE, published.get(2).getStatus());
+  }
+
+  @Test
+  public void streamEvents_deliversReactiveRegistration() throws Exception {
+    int subscribers = eventHub.subscriberCount();
+    // earlier tests' events may still go out first, with the next scheduled flush
+    CompletableFuture<ServerSentEvent<String>> streamedBatch = eventController.streamEvents()
+        .filter(event -> event.data().contains("streamedUsername"))
+        .next().toFuture();
+    assertEquals(subscribers + 1, eventHub.subscriberCount());
+
+    User testUser = new User();
+    testUser.setName("testName");
+    testUser.setUsername("streamedUsername");
+    userService.createUser(testUser).block();
+    eventHub.flush();
+
+    ServerSentEvent<String> batch = streamedBatch.get(5, TimeUnit.SECONDS);
+    assertEquals(UserEventHub.BATCH_EVENT, batch.event());
+    assertTrue(batch.data().contains("streamedUsername"));
+    // the stream is done after that batch -> its subscription is gone again
+    assertEquals(subscribers, eventHub.subscriberCount());
+  }
+}
@@ -0,0 +1,80 @@
+package ch.uzh.ifi.hase.soprafs22.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TokenSessionCacheTest {
+
+  private static final Instant NOW = Instant.parse("2022-03-01T12:00:00Z");
+
+  @Test
+  public void get_afterPut_hit() {
+    TokenSessionCache cache = new TokenSessionCache(10, 1000, Clock.fixed(NOW, ZoneOffset.UTC));
+
+    cache.put("token", 1L);
+
+    assertEquals(1L, cache.get("token"));
+    assertNull(cache.get("other"));
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+  }
+
+  @Test
+  public void get_afterTtl_miss() {
+    // ttl of 0 -> every entry is expired as soon as it is put
+    TokenSessionCache cache = new TokenSessionCache(10, 0, Clock.fixed(NOW, ZoneOffset.UTC));
+    cache.put("token", 1L);
+
+    assertNull(cache.get("token"));
+    assertEquals(0, cache.size());
+    assertEquals(1, cache.getEvictionCount());
+  }
+
+  @Test
+  public void put_whenFull_staysBounded() {
+    TokenSessionCache cache = new TokenSessionCache(3, 1000, Clock.fixed(NOW, ZoneOffset.UTC));
+
+    for (int i = 0; i < 10; i++) {
+      cache.put("token" + i, i);
+    }
+
+    assertEquals(3, cache.size());
+    assertEquals(7, cache.getEvictionCount());
+    assertEquals(9L, cache.get("token9"));
+  }
+
+  @Test
+  public void put_whenFull_evictsOldestFirst() {
+    TokenSessionCache cache = new TokenSessionCache(3, 1000, Clock.fixed(NOW, ZoneOffset.UTC));
+
+    cache.put("token0", 0L);
+    cache.put("token1", 1L);
+    cache.put("token2", 2L);
+    // logging in again replaces token0, so token1 is now the oldest session
+    cache.put("token0", 10L);
+    cache.put("token3", 3L);
+
+    assertNull(cache.get("token1"));
+    assertEquals(10L, cache.get("token0"));
+    assertEquals(2L, cache.get("token2"));
+    assertEquals(3L, cache.get("token3"));
+  }
+
+  @Test
+  public void put_repeatedLogins_expiryQueueStaysBounded() {
+    TokenSessionCache cache = new TokenSessionCache(10, 1000, Clock.fixed(NOW, ZoneOffset.UTC));
+
+    for (int i = 0; i < 1000; i++) {
+      cache.put("token" + (i % 5), i);
+      cache.remove("token" + ((i + 1) % 5));
+    }
+
+    assertTrue(cache.queuedCount() <= 20);
+    assertEquals(0, cache.getEvictionCount());
+  }
+}
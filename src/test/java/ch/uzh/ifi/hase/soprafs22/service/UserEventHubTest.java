@@ -0,0 +1,145 @@
+package ch.uzh.ifi.hase.soprafs22.service;
+
+import ch.uzh.ifi.hase.soprafs22.constant.UserStatus;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class UserEventHubTest {
+
+  private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+  // runs the drains only when the test says so, like a sender thread that is busy elsewhere
+  private final List<Runnable> senderTasks = new ArrayList<>();
+
+  private final Clock clock = Clock.fixed(Instant.parse("2022-03-01T12:00:00Z"), ZoneOffset.UTC);
+
+  private UserEventHub newHub(int bufferSize, int maxSubscribers, Executor sender) {
+    return new UserEventHub(new ObjectMapper(), registry, bufferSize, maxSubscribers, sender, 5000, clock);
+  }
+
+  @Test
+  public void flush_eventsOfOneUser_coalescedIntoOneDelta() {
+    UserEventHub hub = newHub(4, 10, Runnable::run);
+    List<String> received = new ArrayList<>();
+    hub.subscribe((id, name, json) -> received.add(name + " " + json));
+
+    hub.onUserEvent(UserEvent.statusChanged(1L, UserStatus.ONLINE));
+    hub.onUserEvent(UserEvent.profileChanged(1L, "renamed", null));
+    hub.onUserEvent(UserEvent.statusChanged(1L, UserStatus.OFFLINE));
+    hub.onUserEvent(UserEvent.statusChanged(2L, UserStatus.ONLINE));
+    hub.flush();
+    hub.flush();
+
+    assertEquals(List.of("users [{\"id\":1,\"type\":\"PROFILE\",\"username\":\"renamed\",\"status\":\"OFFLINE\"},"
+        + "{\"id\":2,\"type\":\"STATUS\",\"status\":\"ONLINE\"}]"), received);
+  }
+
+  @Test
+  public void flush_slowSubscriber_dropsOldestAndResyncs() {
+    UserEventHub hub = newHub(2, 10, senderTasks::add);
+    List<Long> slow = new ArrayList<>();
+    List<String> slowEvents = new ArrayList<>();
+    hub.subscribe((id, name, json) -> {
+      slow.add(id);
+      slowEvents.add(name);
+    });
+
+    for (long userId = 1; userId <= 5; userId++) {
+      hub.onUserEvent(UserEvent.statusChanged(userId, UserStatus.ONLINE));
+      hub.flush();
+    }
+    // one drain is scheduled, however many batches are waiting
+    assertEquals(1, senderTasks.size());
+    senderTasks.remove(0).run();
+
+    assertEquals(List.of(4L, 4L, 5L), slow);
+    assertEquals(List.of(UserEventHub.RESYNC_EVENT, UserEventHub.BATCH_EVENT, UserEventHub.BATCH_EVENT), slowEvents);
+    assertEquals(3.0, registry.counter("user.events.dropped").count());
+  }
+
+  @Test
+  public void flush_failingSubscriber_isRemoved() {
+    UserEventHub hub = newHub(2, 10, Runnable::run);
+    hub.subscribe((id, name, json) -> {
+      throw new IOException("Broken pipe");
+    });
+
+    hub.onUserEvent(UserEvent.statusChanged(1L, UserStatus.ONLINE));
+    hub.flush();
+
+    assertEquals(0, hub.subscriberCount());
+  }
+
+  @Test
+  public void subscribe_tooManySubscribers_rejected() {
+    UserEventHub hub = newHub(2, 1, Runnable::run);
+    UserEventHub.Subscription first = hub.subscribe((id, name, json) -> { });
+
+    assertThrows(ResponseStatusException.class, () -> hub.subscribe((id, name, json) -> { }));
+    first.cancel();
+    hub.subscribe((id, name, json) -> { });
+  }
+
+  @Test
+  public void abortStalledSends_stuckWrite_subscriberDroppedAndThreadReplaced() throws Exception {
+    // one sender thread; a send limit of 0 ms makes every running write count as stuck
+    ThreadPoolExecutor sender = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+    UserEventHub hub = new UserEventHub(new ObjectMapper(), registry, 2, 10, sender, 0, clock);
+    CountDownLatch writing = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    hub.subscribe((id, name, json) -> {
+      writing.countDown();
+      try {
+        release.await();
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    BlockingQueue<Long> received = new LinkedBlockingQueue<>();
+    hub.subscribe((id, name, json) -> received.add(id));
+
+    try {
+      hub.onUserEvent(UserEvent.statusChanged(1L, UserStatus.ONLINE));
+      hub.flush();
+      assertTrue(writing.await(5, TimeUnit.SECONDS));
+      hub.abortStalledSends();
+
+      // the other subscriber is served by the replacement thread while the write is still stuck
+      assertEquals(1L, received.poll(5, TimeUnit.SECONDS));
+      assertEquals(1, hub.subscriberCount());
+      assertEquals(2, sender.getCorePoolSize());
+      assertEquals(1.0, registry.counter("user.events.stalled").count());
+
+      // the stuck write returns -> back to one thread
+      release.countDown();
+      long deadline = System.currentTimeMillis() + 5000;
+      while (sender.getCorePoolSize() != 1 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertEquals(1, sender.getCorePoolSize());
+      assertEquals(1, sender.getMaximumPoolSize());
+    }
+    finally {
+      release.countDown();
+      sender.shutdownNow();
+    }
+  }
+}
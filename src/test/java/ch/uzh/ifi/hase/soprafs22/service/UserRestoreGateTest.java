@@ -0,0 +1,40 @@
+package ch.uzh.ifi.hase.soprafs22.service;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class UserRestoreGateTest {
+
+  private final UserRestoreGate gate = new UserRestoreGate();
+
+  @Test
+  public void beginRestore_waitsForWritesInProgress() throws Exception {
+    gate.enter();
+
+    CompletableFuture<Void> restore = CompletableFuture.runAsync(gate::beginRestore);
+    assertThrows(TimeoutException.class, () -> restore.get(200, TimeUnit.MILLISECONDS));
+
+    gate.exit();
+    restore.get(5, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void enter_whileRestoring_serviceUnavailable() {
+    gate.beginRestore();
+
+    ResponseStatusException exception = assertThrows(ResponseStatusException.class, gate::enter);
+    assertEquals(HttpStatus.SERVICE_UNAVAILABLE, exception.getStatus());
+    assertThrows(ResponseStatusException.class, gate::beginRestore);
+
+    gate.endRestore();
+    gate.enter();
+    gate.exit();
+  }
+}
@@ -2,15 +2,33 @@ package ch.uzh.ifi.hase.soprafs22.service;
 
 import ch.uzh.ifi.hase.soprafs22.constant.UserStatus;
 import ch.uzh.ifi.hase.soprafs22.entity.User;
+import ch.uzh.ifi.hase.soprafs22.metrics.RequestStatistics;
 import ch.uzh.ifi.hase.soprafs22.repository.UserRepository;
+import ch.uzh.ifi.hase.soprafs22.repository.UserView;
+import ch.uzh.ifi.hase.soprafs22.rest.dto.UserBatchResultDTO;
+import ch.uzh.ifi.hase.soprafs22.rest.dto.UserPutDTO;
+import ch.uzh.ifi.hase.soprafs22.rest.dto.UserSearchResultDTO;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpStatus;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.test.context.web.WebAppConfiguration;
 import org.springframework.web.server.ResponseStatusException;
 
+import javax.persistence.EntityManagerFactory;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 /**
@@ -20,7 +38,7 @@ import static org.junit.jupiter.api.Assertions.*;
  */
 
 @WebAppConfiguration
-@SpringBootTest
+@SpringBootTest(properties = "credentials.bcrypt-strength=4")
 public class UserServiceIntegrationTest {
 
   @Qualifier("userRepository")
@@ -30,6 +48,18 @@ public class UserServiceIntegrationTest {
   @Autowired
   private UserService userService;
 
+  @Autowired
+  private MeterRegistry meterRegistry;
+
+  @Autowired
+  private EntityManagerFactory entityManagerFactory;
+
+  @Autowired
+  private UsernameIndex usernameIndex;
+
+  @Autowired
+  private JdbcTemplate jdbcTemplate;
+
   @BeforeEach
   public void setup() {
     userRepository.deleteAll();
@@ -50,7 +80,7 @@ public class UserServiceIntegrationTest {
 
     // then
     assertEquals(testUser.getId(), createdUser.getId());
-    assertEquals(testUser.getName(), createdUser.getName());
+    assertNull(createdUser.getName());
     assertEquals(testUser.getUsername(), createdUser.getUsername());
     assertNotNull(createdUser.getToken());
     assertEquals(UserStatus.ONLINE, createdUser.getStatus());
@@ -77,6 +107,210 @@ public class UserServiceIntegrationTest {
     assertThrows(ResponseStatusException.class, () -> userService.createUser(testUser2));
   }
 
+    @Test
+    public void loginUser_storedHash_success() {
+        User testUser = new User();
+        testUser.setName("testName");
+        testUser.setUsername("testUsername");
+        User createdUser = userService.createUser(testUser);
+
+        // the password is only stored as a hash
+        assertNotEquals("testName", userRepository.findById(createdUser.getId().longValue()).getPassword());
+
+        // when
+        User loggedIn = userService.loginUser("testUsername", "testName");
+
+        // then -> the new token is persisted
+        assertNotEquals(createdUser.getToken(), loggedIn.getToken());
+        assertEquals(createdUser.getId(), userRepository.findByToken(loggedIn.getToken()).getId());
+        assertThrows(ResponseStatusException.class, () -> userService.loginUser("testUsername", "wrong"));
+    }
+
+    @Test
+    public void getETags_changeWithLoginAndLogout() {
+        User testUser = new User();
+        testUser.setName("testName");
+        testUser.setUsername("testUsername");
+        User createdUser = userService.createUser(testUser);
+        long id = createdUser.getId();
+
+        String userETag = userService.getUserETag(id);
+        String usersETag = userService.getUsersETag();
+        assertEquals(userETag, userService.getUserETag(id));
+
+        // a login writes a new token -> new version
+        User loggedIn = userService.loginUser("testUsername", "testName");
+        assertEquals(createdUser.getVersion() + 1, userRepository.findVersionById(id));
+        assertNotEquals(userETag, userService.getUserETag(id));
+        assertNotEquals(usersETag, userService.getUsersETag());
+
+        // a logout only changes the presence
+        userETag = userService.getUserETag(id);
+        usersETag = userService.getUsersETag();
+        userService.logoutUser(loggedIn.getToken());
+        assertNotEquals(userETag, userService.getUserETag(id));
+        assertNotEquals(usersETag, userService.getUsersETag());
+        assertNull(userService.getUserETag(id + 1000));
+    }
+
+    @Test
+    public void updateUser_partialUpdate_onlyGivenFieldsChange() {
+        User testUser = new User();
+        testUser.setName("testName");
+        testUser.setUsername("testUsername");
+        User createdUser = userService.createUser(testUser);
+        long id = createdUser.getId();
+
+        UserPutDTO birthdayOnly = new UserPutDTO();
+        birthdayOnly.setBirthday(new Date(631_152_000_000L));
+        userService.updateUser(id, birthdayOnly, createdUser.getVersion());
+
+        User updated = userRepository.findById(id);
+        assertEquals("testUsername", updated.getUsername());
+        assertEquals(631_152_000_000L, updated.getBirthday().getTime());
+        assertEquals(createdUser.getVersion() + 1, updated.getVersion());
+
+        // the edit is based on the old version -> rejected, nothing written
+        UserPutDTO rename = new UserPutDTO();
+        rename.setUsername("renamed");
+        ResponseStatusException conflict = assertThrows(ResponseStatusException.class,
+            () -> userService.updateUser(id, rename, createdUser.getVersion()));
+        assertEquals(HttpStatus.CONFLICT, conflict.getStatus());
+        assertEquals("testUsername", userRepository.findById(id).getUsername());
+
+        userService.updateUser(id, rename, updated.getVersion());
+        assertEquals("renamed", userRepository.findById(id).getUsername());
+    }
+
+    @Test
+    public void updateUser_takenUsernameOrUnknownUser_throwsException() {
+        User first = new User();
+        first.setName("first");
+        first.setUsername("first");
+        userService.createUser(first);
+        User second = new User();
+        second.setName("second");
+        second.setUsername("second");
+        long id = userService.createUser(second).getId();
+
+        UserPutDTO rename = new UserPutDTO();
+        rename.setUsername("first");
+        ResponseStatusException conflict = assertThrows(ResponseStatusException.class,
+            () -> userService.updateUser(id, rename, null));
+        assertEquals(HttpStatus.CONFLICT, conflict.getStatus());
+
+        ResponseStatusException notFound = assertThrows(ResponseStatusException.class,
+            () -> userService.updateUser(id + 1000, rename, 0L));
+        assertEquals(HttpStatus.NOT_FOUND, notFound.getStatus());
+    }
+
+    @Test
+    public void searchUsers_followsRegistrationsAndRenames() {
+        User first = new User();
+        first.setName("first");
+        first.setUsername("searchable");
+        long id = userService.createUser(first).getId();
+        User second = new User();
+        second.setName("second");
+        second.setUsername("searcher");
+        userService.createUsers(List.of(second));
+
+        // the prefix matches first; users of other tests may follow as similar ones
+        List<UserSearchResultDTO> found = userService.searchUsers("SEARCH", 10);
+        assertEquals(id, found.get(0).getId());
+        assertEquals("searcher", found.get(1).getUsername());
+
+        UserPutDTO rename = new UserPutDTO();
+        rename.setUsername("relabelled");
+        userService.updateUser(id, rename, null);
+        found = userService.searchUsers("search", 10);
+        assertEquals("searcher", found.get(0).getUsername());
+        assertTrue(found.stream().noneMatch(result -> result.getId() == id));
+        assertEquals(id, userService.searchUsers("relabeled", 10).get(0).getId());
+
+        // the startup load does not undo the rename
+        int indexed = usernameIndex.size();
+        userService.loadUsernameIndex();
+        assertEquals(indexed, usernameIndex.size());
+        assertEquals("relabelled", userService.searchUsers("relabelled", 10).get(0).getUsername());
+
+        ResponseStatusException badRequest = assertThrows(ResponseStatusException.class,
+            () -> userService.searchUsers(" ", 10));
+        assertEquals(HttpStatus.BAD_REQUEST, badRequest.getStatus());
+    }
+
+    @Test
+    public void getUpcomingBirthdays_acrossNewYear_inOrderAndPaged() {
+        User march = createUserBornOn("march", LocalDate.of(1990, 3, 1));
+        User leapDay = createUserBornOn("leapDay", LocalDate.of(1996, 2, 29));
+        User newYear = createUserBornOn("newYear", LocalDate.of(1985, 1, 1));
+        User newYearToo = createUserBornOn("newYearToo", LocalDate.of(2000, 1, 1));
+        User newYearsEve = createUserBornOn("newYearsEve", LocalDate.of(1970, 12, 31));
+        createUserBornOn("summer", LocalDate.of(1990, 7, 15));
+
+        // Dec 30 - Jan 3: the rest of the year first, then the start of the next one
+        List<User> upcoming = userService.getUpcomingBirthdays(LocalDate.of(2021, 12, 30), 5, null, 10);
+        assertEquals(List.of(newYearsEve.getId(), newYear.getId(), newYearToo.getId()), idsOf(upcoming));
+
+        // the same list page by page, the cursor moves from one range into the other
+        List<User> firstPage = userService.getUpcomingBirthdays(LocalDate.of(2021, 12, 30), 5, null, 2);
+        assertEquals(List.of(newYearsEve.getId(), newYear.getId()), idsOf(firstPage));
+        String cursor = UserService.birthdayCursorOf(firstPage.get(1));
+        assertEquals(List.of(newYearToo.getId()),
+            idsOf(userService.getUpcomingBirthdays(LocalDate.of(2021, 12, 30), 5, cursor, 2)));
+
+        // February 29 falls between February 28 and March 1 in a common year
+        assertEquals(List.of(leapDay.getId(), march.getId()),
+            idsOf(userService.getUpcomingBirthdays(LocalDate.of(2023, 2, 28), 2, null, 10)));
+        // ... and is celebrated on February 28, so a daily job sees it exactly once
+        assertEquals(List.of(leapDay.getId()),
+            idsOf(userService.getUpcomingBirthdays(LocalDate.of(2026, 2, 28), 1, null, 10)));
+        assertEquals(List.of(march.getId()),
+            idsOf(userService.getUpcomingBirthdays(LocalDate.of(2026, 3, 1), 1, null, 10)));
+        assertEquals(List.of(newYearsEve.getId(), newYear.getId(), newYearToo.getId(), leapDay.getId()),
+            idsOf(userService.getUpcomingBirthdays(LocalDate.of(2025, 12, 31), 60, null, 10)));
+        assertEquals(List.of(leapDay.getId()),
+            idsOf(userService.getUpcomingBirthdays(LocalDate.of(2024, 2, 28), 2, null, 10)));
+
+        // a whole year lists everybody with a birthday once, starting today
+        List<User> year = userService.getUpcomingBirthdays(LocalDate.of(2021, 7, 16), 366, null, 10);
+        assertEquals(6, year.size());
+        assertEquals(newYearsEve.getId(), year.get(0).getId());
+
+        ResponseStatusException badRequest = assertThrows(ResponseStatusException.class,
+            () -> userService.getUpcomingBirthdays(0, null, 10));
+        assertEquals(HttpStatus.BAD_REQUEST, badRequest.getStatus());
+    }
+
+    @Test
+    public void backfillBirthdayKeys_rowsWithoutKey() {
+        User user = createUserBornOn("old", LocalDate.of(1990, 3, 15));
+        userService.backfillBirthdayKeys();
+        assertEquals(315, userRepository.findById((long) user.getId()).getBirthdayKey());
+
+        // a row written before the column existed
+        jdbcTemplate.update("update user set birthday_key = null");
+        entityManagerFactory.getCache().evictAll();
+        assertNull(userRepository.findById((long) user.getId()).getBirthdayKey());
+
+        assertEquals(1, userRepository.backfillBirthdayKeys());
+        assertEquals(315, userRepository.findById((long) user.getId()).getBirthdayKey());
+    }
+
+    private User createUserBornOn(String username, LocalDate birthday) {
+        User user = new User();
+        user.setName(username);
+        user.setUsername(username);
+        user.setBirthday(Date.from(birthday.atStartOfDay(ZoneOffset.UTC).toInstant()));
+        return userService.createUser(user);
+    }
+
+    private static List<Long> idsOf(List<User> users) {
+        List<Long> ids = new ArrayList<>();
+        users.forEach(user -> ids.add(user.getId()));
+        return ids;
+    }
+
     @Test
     public void get_userProfile_id_success() {
         // given
@@ -94,7 +328,7 @@ public class UserServiceIntegrationTest {
 
         // then
         assertEquals(testUser.getId(), foundUser.getId());
-        assertEquals(testUser.getName(), foundUser.getName());
+        assertNull(foundUser.getName());
         assertEquals(testUser.getUsername(), foundUser.getUsername());
         assertEquals(testUser.getCreation_date(), foundUser.getCreation_date());
         assertEquals(UserStatus.ONLINE, foundUser.getStatus());
@@ -117,5 +351,198 @@ public class UserServiceIntegrationTest {
         assertThrows(ResponseStatusException.class, () -> userService.findByID(testUser.getId()));
     }
 
+    @Test
+    public void exportUsers_streamsAllUsersInIdOrder() {
+        User first = new User();
+        first.setName("testName4");
+        first.setUsername("testUsername4");
+        userService.createUser(first);
+
+        User second = new User();
+        second.setName("testName5");
+        second.setUsername("testUsername5");
+        userService.createUser(second);
+
+        // when
+        List<String> exported = new ArrayList<>();
+        userService.exportUsers(user -> exported.add(user.getUsername()));
+
+        // then
+        assertEquals(Arrays.asList("testUsername4", "testUsername5"), exported);
+    }
+
+    @Test
+    public void createUsers_mixedInputs_perItemResults() {
+        User existing = new User();
+        existing.setName("testName6");
+        existing.setUsername("taken");
+        userService.createUser(existing);
+
+        List<User> batch = new ArrayList<>();
+        for (int i = 0; i < UserService.BATCH_CHUNK_SIZE + 1; i++) {
+            User newUser = new User();
+            newUser.setName("batchName" + i);
+            newUser.setUsername("batchUser" + i);
+            batch.add(newUser);
+        }
+        User duplicate = new User();
+        duplicate.setName("batchName");
+        duplicate.setUsername("batchUser0");
+        batch.add(duplicate);
+        User taken = new User();
+        taken.setName("batchName");
+        taken.setUsername("taken");
+        batch.add(taken);
+        User missingName = new User();
+        missingName.setUsername("noName");
+        batch.add(missingName);
+
+        // when
+        List<UserBatchResultDTO> results = userService.createUsers(batch);
+
+        // then -> every valid user is stored, across more than one chunk
+        assertEquals(batch.size(), results.size());
+        for (int i = 0; i < UserService.BATCH_CHUNK_SIZE + 1; i++) {
+            assertEquals(201, results.get(i).getStatus());
+            assertEquals("batchUser" + i, results.get(i).getUser().getUsername());
+            assertNotNull(userRepository.findByUsername("batchUser" + i));
+        }
+        assertEquals(409, results.get(UserService.BATCH_CHUNK_SIZE + 1).getStatus());
+        assertEquals(409, results.get(UserService.BATCH_CHUNK_SIZE + 2).getStatus());
+        assertEquals(400, results.get(UserService.BATCH_CHUNK_SIZE + 3).getStatus());
+        assertNull(userRepository.findByUsername("noName"));
+    }
+
+    @Test
+    public void logoutUser_statusWrittenOnFlush() {
+        User testUser = new User();
+        testUser.setName("testName7");
+        testUser.setUsername("testUsername7");
+        User createdUser = userService.createUser(testUser);
+
+        // when
+        userService.logoutUser(createdUser.getToken());
+
+        // then -> OFFLINE right away, but the column is only written by the periodic flush
+        assertEquals(UserStatus.OFFLINE, userService.findByID(createdUser.getId()).getStatus());
+        assertEquals(UserStatus.ONLINE, userRepository.findById(createdUser.getId().longValue()).getStatus());
+        userService.flushPresence();
+        assertEquals(UserStatus.OFFLINE, userRepository.findById(createdUser.getId().longValue()).getStatus());
+    }
+
+    @Test
+    public void repositoryCalls_areTimed() {
+        User testUser = new User();
+        testUser.setName("testName8");
+        testUser.setUsername("testUsername8");
+        User createdUser = userService.createUser(testUser);
+
+        // when
+        userService.getUsers(0, 10);
+        userService.findByID(createdUser.getId());
+
+        // then -> derived and inherited repository methods both end up in the timer
+        assertTrue(meterRegistry.get("user.repository").tag("method", "findByIdGreaterThanOrderByIdAsc").timer().count() > 0);
+        assertTrue(meterRegistry.get("user.repository").tag("method", "findById").timer().count() > 0);
+        assertTrue(meterRegistry.get("user.repository").tag("method", "deleteAll").timer().count() > 0);
+    }
+
+    @Test
+    public void requestStatistics_countStatementsAndLoads() {
+        User testUser = new User();
+        testUser.setName("testName9");
+        testUser.setUsername("testUsername9");
+        User createdUser = userService.createUser(testUser);
+
+        // when -> the first lookup misses the second-level cache
+        entityManagerFactory.getCache().evictAll();
+        RequestStatistics statistics = RequestStatistics.begin();
+        try {
+            userService.findByID(createdUser.getId());
+        }
+        finally {
+            RequestStatistics.end();
+        }
+
+        // then -> one select, one entity loaded
+        assertEquals(1, statistics.getStatements());
+        assertEquals(1, statistics.getEntitiesLoaded());
+
+        // the second one is answered from the cache
+        RequestStatistics cached = RequestStatistics.begin();
+        try {
+            userService.findByID(createdUser.getId());
+        }
+        finally {
+            RequestStatistics.end();
+        }
+        assertEquals(0, cached.getStatements());
+    }
+
+    @Test
+    public void listAndProfileReads_noEntityLoaded() {
+        User testUser = new User();
+        testUser.setName("testName10");
+        testUser.setUsername("testUsername10");
+        User createdUser = userService.createUser(testUser);
+        userService.logoutUser(createdUser.getToken());
+
+        // when
+        RequestStatistics statistics = RequestStatistics.begin();
+        List<UserView> page;
+        UserView profile;
+        try {
+            page = userService.getUsers(0, 10);
+            profile = userService.getProfile(createdUser.getId());
+        }
+        finally {
+            RequestStatistics.end();
+        }
+
+        // then -> one select each, columns only, with the current presence
+        assertEquals(2, statistics.getStatements());
+        assertEquals(0, statistics.getEntitiesLoaded());
+        assertEquals(createdUser.getId(), page.get(0).getId());
+        assertEquals("testUsername10", profile.getUsername());
+        assertEquals(UserStatus.OFFLINE, profile.getStatus());
+        assertThrows(ResponseStatusException.class, () -> userService.getProfile(createdUser.getId() + 1000));
+    }
+
+    @Test
+    public void secondLevelCache_writesEvictOnlyTheirUser() {
+        User first = new User();
+        first.setName("first");
+        first.setUsername("first");
+        User createdFirst = userService.createUser(first);
+        User second = new User();
+        second.setName("second");
+        second.setUsername("second");
+        User createdSecond = userService.createUser(second);
+        Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+
+        // both users are cached on registration
+        long hits = statistics.getEntityStatistics(User.class.getName()).getCacheHitCount();
+        userRepository.findById(createdFirst.getId().longValue());
+        userRepository.findByUsername("second");
+        assertEquals(hits + 2, statistics.getEntityStatistics(User.class.getName()).getCacheHitCount());
+
+        // a login replaces the token of its user only
+        User loggedIn = userService.loginUser("first", "first");
+        assertFalse(entityManagerFactory.getCache().contains(User.class, createdFirst.getId()));
+        assertTrue(entityManagerFactory.getCache().contains(User.class, createdSecond.getId()));
+        assertEquals(loggedIn.getToken(), userRepository.findById(createdFirst.getId().longValue()).getToken());
+
+        // a rename moves the natural id
+        UserPutDTO rename = new UserPutDTO();
+        rename.setUsername("renamed");
+        userService.updateUser(createdSecond.getId(), rename, null);
+        assertNull(userRepository.findByUsername("second"));
+        assertEquals(createdSecond.getId(), userRepository.findByUsername("renamed").getId());
+
+        // the presence flush writes the status column, the users are read again afterwards
+        userService.logoutUser(loggedIn.getToken());
+        userService.flushPresence();
+        assertEquals(UserStatus.OFFLINE, userRepository.findById(createdFirst.getId().longValue()).getStatus());
+    }
 
 }
@@ -1,16 +1,27 @@
 package ch.uzh.ifi.hase.soprafs22.service;
 
+import ch.uzh.ifi.hase.soprafs22.constant.UserEventType;
 import ch.uzh.ifi.hase.soprafs22.constant.UserStatus;
 import ch.uzh.ifi.hase.soprafs22.entity.User;
 import ch.uzh.ifi.hase.soprafs22.repository.UserRepository;
+import ch.uzh.ifi.hase.soprafs22.rest.dto.UserPutDTO;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
+import org.mockito.Spy;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.http.HttpStatus;
+import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.web.server.ResponseStatusException;
 
+import java.util.Arrays;
+import java.util.Collections;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 public class UserServiceTest {
@@ -18,6 +29,30 @@ public class UserServiceTest {
   @Mock
   private UserRepository userRepository;
 
+  @Mock
+  private PlatformTransactionManager transactionManager;
+
+  @Mock
+  private ApplicationEventPublisher eventPublisher;
+
+  @Spy
+  private TokenSessionCache sessionCache = new TokenSessionCache(100, 60);
+
+  @Spy
+  private PresenceTracker presenceTracker = new PresenceTracker(60);
+
+  @Spy
+  private CredentialService credentialService = new CredentialService(4, 1, 8, 5000, new SimpleMeterRegistry());
+
+  @Spy
+  private UserChangeCounter changeCounter = new UserChangeCounter();
+
+  @Spy
+  private UsernameIndex usernameIndex = new UsernameIndex();
+
+  @Spy
+  private UserRestoreGate restoreGate = new UserRestoreGate();
+
   @InjectMocks
   private UserService userService;
 
@@ -32,10 +67,11 @@ public class UserServiceTest {
     testUser.setId(1L);
     testUser.setName("testName");
     testUser.setUsername("testUsername");
+    testUser.setVersion(0L);
 
     // when -> any object is being save in the userRepository -> return the dummy
     // testUser
-    Mockito.when(userRepository.save(Mockito.any())).thenReturn(testUser);
+    Mockito.when(userRepository.saveAndFlush(Mockito.any())).thenReturn(testUser);
   }
 
   @Test
@@ -45,12 +81,14 @@ public class UserServiceTest {
     User createdUser = userService.createUser(testUser);
 
     // then
-    Mockito.verify(userRepository, Mockito.times(1)).save(Mockito.any());
+    Mockito.verify(userRepository, Mockito.times(1)).saveAndFlush(Mockito.any());
 
     assertEquals(testUser.getId(), createdUser.getId());
-    assertEquals(testUser.getName(), createdUser.getName());
+    // the password in clear is hashed and not kept
+    assertNull(createdUser.getName());
     assertEquals(testUser.getUsername(), createdUser.getUsername());
     assertNotNull(createdUser.getToken());
+    assertNotEquals("testName", createdUser.getPassword());
     //assertEquals(UserStatus.ONLINE, createdUser.getStatus());
   }
 
@@ -59,13 +97,37 @@ public class UserServiceTest {
     // given -> a first user has already been created
     userService.createUser(testUser);
 
-    // when -> setup additional mocks for UserRepository
-    //Mockito.when(userRepository.findByName(Mockito.any())).thenReturn(testUser);
-    Mockito.when(userRepository.findByUsername(Mockito.any())).thenReturn(testUser);
+    // when -> the insert of the second user violates the unique username constraint
+    Mockito.doThrow(usernameConstraintViolation()).when(userRepository).saveAndFlush(Mockito.any());
 
     // then -> attempt to create second user with same user -> check that an error
     // is thrown
-    assertThrows(ResponseStatusException.class, () -> userService.createUser(testUser));
+    ResponseStatusException exception = assertThrows(ResponseStatusException.class, () -> userService.createUser(sameUsername()));
+    assertEquals(HttpStatus.CONFLICT, exception.getStatus());
+  }
+
+  @Test
+  public void createUser_whileRestoring_serviceUnavailable() {
+    restoreGate.beginRestore();
+
+    ResponseStatusException exception = assertThrows(ResponseStatusException.class, () -> userService.createUser(testUser));
+    assertEquals(HttpStatus.SERVICE_UNAVAILABLE, exception.getStatus());
+    Mockito.verify(userRepository, Mockito.never()).saveAndFlush(Mockito.any());
+
+    restoreGate.endRestore();
+    assertNotNull(userService.createUser(testUser).getToken());
+  }
+
+  @Test
+  public void updateUser_whileRestoring_serviceUnavailable() {
+    UserPutDTO rename = new UserPutDTO();
+    rename.setUsername("renamed");
+    restoreGate.beginRestore();
+
+    ResponseStatusException exception = assertThrows(ResponseStatusException.class, () -> userService.updateUser(1L, rename, null));
+    assertEquals(HttpStatus.SERVICE_UNAVAILABLE, exception.getStatus());
+    Mockito.verifyNoInteractions(userRepository);
+    restoreGate.endRestore();
   }
 
   @Test
@@ -73,13 +135,149 @@ public class UserServiceTest {
     // given -> a first user has already been created
     userService.createUser(testUser);
 
-    // when -> setup additional mocks for UserRepository
-    //Mockito.when(userRepository.findByName(Mockito.any())).thenReturn(testUser);
-    Mockito.when(userRepository.findByUsername(Mockito.any())).thenReturn(testUser);
+    // when -> the insert of the second user violates the unique username constraint
+    Mockito.doThrow(usernameConstraintViolation()).when(userRepository).saveAndFlush(Mockito.any());
 
     // then -> attempt to create second user with same user -> check that an error
     // is thrown
-    assertThrows(ResponseStatusException.class, () -> userService.createUser(testUser));
+    ResponseStatusException exception = assertThrows(ResponseStatusException.class, () -> userService.createUser(sameUsername()));
+    assertEquals(HttpStatus.CONFLICT, exception.getStatus());
+  }
+
+  @Test
+  public void createUser_blankName_badRequest() {
+    testUser.setName(" ");
+
+    ResponseStatusException exception = assertThrows(ResponseStatusException.class, () -> userService.createUser(testUser));
+    assertEquals(HttpStatus.BAD_REQUEST, exception.getStatus());
+    Mockito.verify(credentialService, Mockito.never()).hash(Mockito.any());
+    Mockito.verify(userRepository, Mockito.never()).saveAndFlush(Mockito.any());
+  }
+
+  @Test
+  public void createUser_missingUsername_badRequest() {
+    testUser.setUsername(null);
+
+    ResponseStatusException exception = assertThrows(ResponseStatusException.class, () -> userService.createUser(testUser));
+    assertEquals(HttpStatus.BAD_REQUEST, exception.getStatus());
+    Mockito.verify(credentialService, Mockito.never()).hash(Mockito.any());
+  }
+
+  @Test
+  public void createUser_otherIntegrityViolation_rethrown() {
+    Mockito.doThrow(new DataIntegrityViolationException("not-null",
+        new RuntimeException("NULL not allowed for column \"NAME\""))).when(userRepository).saveAndFlush(Mockito.any());
+
+    assertThrows(DataIntegrityViolationException.class, () -> userService.createUser(testUser));
+  }
+
+  @Test
+  public void loginUser_correctPassword_newToken() {
+    User createdUser = userService.createUser(testUser);
+    String oldToken = createdUser.getToken();
+    Mockito.when(userRepository.findByUsername("testUsername")).thenReturn(createdUser);
+
+    // when -> the name is the password
+    User loggedIn = userService.loginUser("testUsername", "testName");
+
+    // then -> only the new token is written, the old one is no longer cached
+    assertNotEquals(oldToken, loggedIn.getToken());
+    Mockito.verify(userRepository).updateToken(testUser.getId(), loggedIn.getToken());
+    assertNull(sessionCache.get(oldToken));
+    assertEquals(testUser.getId(), sessionCache.get(loggedIn.getToken()));
+  }
+
+  @Test
+  public void loginUser_wrongPassword_throwsException() {
+    User createdUser = userService.createUser(testUser);
+    Mockito.when(userRepository.findByUsername("testUsername")).thenReturn(createdUser);
+
+    ResponseStatusException e = assertThrows(ResponseStatusException.class,
+        () -> userService.loginUser("testUsername", "wrong"));
+    assertEquals(HttpStatus.BAD_REQUEST, e.getStatus());
+    Mockito.verify(userRepository, Mockito.never()).updateToken(Mockito.anyLong(), Mockito.any());
+  }
+
+  @Test
+  public void findUserIdByToken_cachedAfterCreate_skipsRepository() {
+    User createdUser = userService.createUser(testUser);
+
+    // when
+    long userID = userService.findUserIdByToken(createdUser.getToken());
+
+    // then -> answered from the session cache
+    assertEquals(testUser.getId(), userID);
+    Mockito.verify(userRepository, Mockito.never()).findByToken(Mockito.any());
+  }
+
+  @Test
+  public void findUserIdByToken_unknownToken_throwsException() {
+    Mockito.when(userRepository.findByToken(Mockito.any())).thenReturn(null);
+
+    assertThrows(ResponseStatusException.class, () -> userService.findUserIdByToken("unknown"));
+  }
+
+  @Test
+  public void logoutUser_removesTokenFromCache() {
+    User createdUser = userService.createUser(testUser);
+    String token = createdUser.getToken();
+
+    // when
+    userService.logoutUser(token);
+
+    // then -> OFFLINE right away, the next validation has to go to the database again
+    assertEquals(UserStatus.OFFLINE, presenceTracker.statusOf(testUser.getId()));
+    assertNull(sessionCache.get(token));
+    Mockito.verify(userRepository, Mockito.never()).updateStatus(Mockito.any(), Mockito.any());
+    // the created user and its logout went out as events
+    Mockito.verify(eventPublisher).publishEvent(Mockito.<UserEvent>argThat(event ->
+        event.getType() == UserEventType.CREATED && event.getStatus() == UserStatus.ONLINE));
+    Mockito.verify(eventPublisher).publishEvent(Mockito.<UserEvent>argThat(event ->
+        event.getType() == UserEventType.STATUS && event.getStatus() == UserStatus.OFFLINE));
+  }
+
+  @Test
+  public void flushPresence_writesCollectedChangesInOneUpdatePerStatus() {
+    presenceTracker.markOnline(1L);
+    presenceTracker.markOnline(2L);
+    presenceTracker.markOffline(3L);
+
+    // when
+    userService.flushPresence();
+    userService.flushPresence();
+
+    // then -> the second run has nothing left to write
+    Mockito.verify(userRepository, Mockito.times(1)).updateStatus(Mockito.eq(UserStatus.ONLINE),
+        Mockito.argThat(ids -> ids.size() == 2 && ids.containsAll(Arrays.asList(1L, 2L))));
+    Mockito.verify(userRepository, Mockito.times(1)).updateStatus(UserStatus.OFFLINE, Collections.singletonList(3L));
+  }
+
+  @Test
+  public void flushPresence_failedUpdate_retriedWithNextRun() {
+    presenceTracker.markOffline(3L);
+    Mockito.when(userRepository.updateStatus(Mockito.any(), Mockito.any()))
+        .thenThrow(new DataIntegrityViolationException("connection lost"))
+        .thenReturn(1);
+
+    // when
+    userService.flushPresence();
+    userService.flushPresence();
+
+    // then -> the change was not lost with the first run
+    Mockito.verify(userRepository, Mockito.times(2)).updateStatus(UserStatus.OFFLINE, Collections.singletonList(3L));
+  }
+
+  // createUser() clears the password in clear of the user it returns, which is testUser itself
+  private static User sameUsername() {
+    User user = new User();
+    user.setName("otherName");
+    user.setUsername("testUsername");
+    return user;
+  }
+
+  private static DataIntegrityViolationException usernameConstraintViolation() {
+    return new DataIntegrityViolationException("could not execute statement",
+        new RuntimeException("Unique index or primary key violation: \"PUBLIC.UK_USER_USERNAME_INDEX_2 ON PUBLIC.USER(USERNAME)\""));
   }
 
 }
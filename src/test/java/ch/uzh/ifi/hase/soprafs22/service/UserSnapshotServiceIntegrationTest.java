@@ -0,0 +1,176 @@
+package ch.uzh.ifi.hase.soprafs22.service;
+
+import ch.uzh.ifi.hase.soprafs22.constant.UserStatus;
+import ch.uzh.ifi.hase.soprafs22.entity.User;
+import ch.uzh.ifi.hase.soprafs22.repository.UserRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.context.web.WebAppConfiguration;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@WebAppConfiguration
+@SpringBootTest(properties = "credentials.bcrypt-strength=4")
+public class UserSnapshotServiceIntegrationTest {
+
+  @Qualifier("userRepository")
+  @Autowired
+  private UserRepository userRepository;
+
+  @Autowired
+  private UserService userService;
+
+  @Autowired
+  private UserSnapshotService snapshotService;
+
+  @Autowired
+  private UsernameIndex usernameIndex;
+
+  @BeforeEach
+  public void setup() {
+    userRepository.deleteAll();
+  }
+
+  @Test
+  public void exportThenRestore_sameUsers() throws Exception {
+    User first = new User();
+    first.setName("first");
+    first.setUsername("first");
+    first = userService.createUser(first);
+    User second = new User();
+    second.setName("second");
+    second.setUsername("second");
+    second.setBirthday(new Date(631_152_000_000L));
+    second = userService.createUser(second);
+
+    ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+    assertEquals(2, snapshotService.export(snapshot));
+
+    userRepository.deleteAll();
+    assertEquals(2, snapshotService.restore(new ByteArrayInputStream(snapshot.toByteArray())));
+
+    User restored = userRepository.findByUsername("second");
+    assertEquals(second.getId(), restored.getId());
+    assertEquals(second.getToken(), restored.getToken());
+    assertEquals(second.getPassword(), restored.getPassword());
+    assertEquals(631_152_000_000L, restored.getBirthday().getTime());
+    assertEquals(UserStatus.OFFLINE, restored.getStatus());
+
+    // the password hash came along, and new users get ids past the restored ones
+    assertNotNull(userService.loginUser("first", "first").getToken());
+    User third = new User();
+    third.setName("third");
+    third.setUsername("third");
+    assertTrue(userService.createUser(third).getId() > second.getId());
+  }
+
+  @Test
+  public void restore_formatWithName_nameSkipped() throws Exception {
+    User user = new User();
+    user.setName("legacy");
+    user.setUsername("legacy");
+    String hash = userService.createUser(user).getPassword();
+    userRepository.deleteAll();
+
+    // a snapshot of format 1 still carries the password in clear after the id
+    ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+    try (DataOutputStream data = new DataOutputStream(new GZIPOutputStream(snapshot))) {
+      data.writeInt(UserSnapshotService.MAGIC);
+      data.writeInt(UserSnapshotService.FORMAT_VERSION_WITH_NAME);
+      data.writeByte(1);
+      // far past the registered ids: the UsernameIndex still knows the ids of the users deleted by other tests
+      data.writeLong(500_005L);
+      data.writeUTF("legacy");
+      data.writeUTF("legacy");
+      data.writeByte(1 << 1);
+      data.writeUTF(hash);
+      data.writeByte(0);
+      data.writeLong(1L);
+    }
+
+    assertEquals(1, snapshotService.restore(new ByteArrayInputStream(snapshot.toByteArray())));
+    assertEquals(500_005L, userRepository.findByUsername("legacy").getId());
+    assertEquals("legacy", usernameIndex.search("legacy", 10).get(500_005L));
+    assertNotNull(userService.loginUser("legacy", "legacy").getToken());
+  }
+
+  @Test
+  public void restore_existingUsers_conflict() throws Exception {
+    User first = new User();
+    first.setName("first");
+    first.setUsername("first");
+    userService.createUser(first);
+    ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+    snapshotService.export(snapshot);
+
+    ResponseStatusException exception = assertThrows(ResponseStatusException.class,
+        () -> snapshotService.restore(new ByteArrayInputStream(snapshot.toByteArray())));
+    assertEquals(HttpStatus.CONFLICT, exception.getStatus());
+    assertEquals(1, userRepository.count());
+  }
+
+  @Test
+  public void restore_truncatedSnapshot_rolledBack() throws Exception {
+    for (int i = 0; i < 3; i++) {
+      User user = new User();
+      user.setName("name" + i);
+      user.setUsername("username" + i);
+      userService.createUser(user);
+    }
+    ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+    snapshotService.export(snapshot);
+    userRepository.deleteAll();
+
+    byte[] truncated = Arrays.copyOf(snapshot.toByteArray(), snapshot.size() - 12);
+    ResponseStatusException exception = assertThrows(ResponseStatusException.class,
+        () -> snapshotService.restore(new ByteArrayInputStream(truncated)));
+    assertEquals(HttpStatus.BAD_REQUEST, exception.getStatus());
+    assertEquals(0, userRepository.count());
+
+    // the gate is open again
+    User user = new User();
+    user.setName("after");
+    user.setUsername("after");
+    assertNotNull(userService.createUser(user).getId());
+  }
+
+  @Test
+  public void restore_wrongUserCount_deletedAndNotIndexed() throws Exception {
+    ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+    try (DataOutputStream data = new DataOutputStream(new GZIPOutputStream(snapshot))) {
+      data.writeInt(UserSnapshotService.MAGIC);
+      data.writeInt(UserSnapshotService.FORMAT_VERSION);
+      data.writeByte(1);
+      data.writeLong(600_009L);
+      data.writeUTF("unrestored");
+      data.writeByte(0);
+      data.writeByte(0);
+      data.writeLong(2L);
+    }
+
+    ResponseStatusException exception = assertThrows(ResponseStatusException.class,
+        () -> snapshotService.restore(new ByteArrayInputStream(snapshot.toByteArray())));
+    assertEquals(HttpStatus.BAD_REQUEST, exception.getStatus());
+    assertEquals(0, userRepository.count());
+    assertFalse(usernameIndex.search("unrestored", 10).containsKey(600_009L));
+  }
+
+  @Test
+  public void restore_notASnapshot_badRequest() {
+    ResponseStatusException exception = assertThrows(ResponseStatusException.class,
+        () -> snapshotService.restore(new ByteArrayInputStream("id,name\n1,first\n".getBytes())));
+    assertEquals(HttpStatus.BAD_REQUEST, exception.getStatus());
+  }
+}
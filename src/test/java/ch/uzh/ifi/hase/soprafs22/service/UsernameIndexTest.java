@@ -0,0 +1,66 @@
+package ch.uzh.ifi.hase.soprafs22.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class UsernameIndexTest {
+
+  @Test
+  public void search_prefix_caseInsensitiveAndSorted() {
+    UsernameIndex index = new UsernameIndex();
+    index.put(1L, "maria");
+    index.put(2L, "Marianne");
+    index.put(3L, "mark");
+    index.put(4L, "tom");
+
+    // "mark" is similar to "maria", but only comes after the prefix matches
+    assertEquals(Arrays.asList(1L, 2L, 3L), List.copyOf(index.search("MARIA", 10).keySet()));
+    assertEquals(Arrays.asList(1L, 2L, 3L), List.copyOf(index.search("mar", 10).keySet()));
+    assertEquals(Collections.singletonList(1L), List.copyOf(index.search("mar", 1).keySet()));
+  }
+
+  @Test
+  public void search_typo_similarUsernamesAfterPrefixMatches() {
+    UsernameIndex index = new UsernameIndex();
+    index.put(1L, "alexander");
+    index.put(2L, "alexandra");
+    index.put(3L, "bob");
+
+    assertEquals(Arrays.asList(2L, 1L), List.copyOf(index.search("alexandr", 10).keySet()));
+    // no username starts with the query, two letters are swapped
+    assertEquals("alexander", index.search("alexnader", 10).get(1L));
+    assertFalse(index.search("alexnader", 10).containsKey(3L));
+    assertTrue(index.search("xyz", 10).isEmpty());
+  }
+
+  @Test
+  public void put_rename_oldUsernameIsGone() {
+    UsernameIndex index = new UsernameIndex();
+    index.put(1L, "before");
+
+    index.put(1L, "after");
+
+    assertTrue(index.search("before", 10).isEmpty());
+    assertEquals("after", index.search("aft", 10).get(1L));
+    assertEquals(1, index.size());
+  }
+
+  @Test
+  public void load_doesNotUndoRename() {
+    UsernameIndex index = new UsernameIndex();
+    index.put(1L, "renamed");
+
+    // the bulk load read the row before the rename
+    index.load(1L, "original");
+    index.load(2L, "other");
+
+    assertEquals("renamed", index.search("ren", 10).get(1L));
+    assertTrue(index.search("orig", 10).isEmpty());
+    assertEquals(2, index.size());
+  }
+}